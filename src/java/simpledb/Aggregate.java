@@ -1,16 +1,38 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min). Several aggregates, grouped by any number of columns, are computed in
+ * one pass over the child.
+ * <p>
+ * With a parallelism above one, the child's batches are aggregated by that
+ * many worker threads, each into an aggregator of its own, and the partial
+ * aggregates are then merged. Over a parallel SeqScan, the file is read and
+ * aggregated on all the workers at once.
+ * <p>
+ * The aggregators keep as many groups in memory as fit in the memory budget
+ * ({@link #getMemoryPages} pages' worth of output tuples), and spill the
+ * rows of the other groups to disk (see HashAggregator).
+ * <p>
+ * A streaming Aggregate relies on its child returning the rows of each
+ * group together, as a child sorted on the group-by fields does, and
+ * returns each group as soon as the next one starts, keeping only that
+ * group in memory. It reads its child on one thread; see
+ * {@link #isGroupedOn} for the children known to be grouped.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default memory budget for the groups, in BufferPool pages. */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
+    private static int parallelism = 1;
+    private static int memoryPages = DEFAULT_MEMORY_PAGES;
+
     /**
      * Constructor.
      * 
@@ -31,18 +53,85 @@ public class Aggregate extends Operator {
      */
 
     private OpIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private boolean streaming;
 
     private OpIterator iter;
 
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-	// some code goes here
+        this(child, new int[] { afield }, HashAggregator.groupFields(gfield),
+                new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Creates an Aggregate that computes several aggregates, grouped by
+     * several fields. Its output tuples are the group-by fields, in order,
+     * followed by the aggregates.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The column of each aggregate.
+     * @param gfields
+     *            The columns over which we are grouping the result, none if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator of each aggregate
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, false);
+    }
+
+    /**
+     * Creates an Aggregate that, if streaming, aggregates its child one
+     * group at a time.
+     *
+     * @param streaming
+     *            Whether the child returns the rows of each group together,
+     *            so that they can be aggregated as they are read
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+            boolean streaming) {
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields;
+        this.gfields = gfields;
+        this.aops = aops;
+        this.streaming = streaming;
+    }
+
+    /**
+     * @return whether this Aggregate aggregates its child one group at a
+     *         time, as it is read
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return whether it is known that child returns the rows of each group
+     *         of gfields together: it is sorted, in either order, on the
+     *         group-by fields
+     */
+    public static boolean isGroupedOn(OpIterator child, int[] gfields) {
+        if (gfields.length == 0)
+            return false;
+        if (child instanceof OrderBy) {
+            // the group-by fields, in any order, are the first sort fields
+            int[] sortFields = ((OrderBy) child).getOrderByFields();
+            if (sortFields.length < gfields.length)
+                return false;
+            Set<Integer> prefix = new HashSet<Integer>();
+            for (int i = 0; i < gfields.length; i++)
+                prefix.add(sortFields[i]);
+            for (int gfield : gfields) {
+                if (!prefix.contains(gfield))
+                    return false;
+            }
+            return true;
+        }
+        return gfields.length == 1 && SortMergeJoin.isSortedOn(child, gfields[0]);
     }
 
     /**
@@ -51,8 +140,15 @@ public class Aggregate extends Operator {
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-	// some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the group-by field indexes in the <b>INPUT</b> tuples, none
+     *         if there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields;
     }
 
     /**
@@ -61,12 +157,10 @@ public class Aggregate extends Operator {
      *         null;
      * */
     public String groupFieldName() {
-	// some code goes here
-        if(gfield!= Aggregator.NO_GROUPING){
-            return child.getTupleDesc().getFieldName(gfield);
+        if (gfields.length > 0) {
+            return child.getTupleDesc().getFieldName(gfields[0]);
         }
-
-	    return null;
+        return null;
     }
 
 
@@ -74,9 +168,14 @@ public class Aggregate extends Operator {
      * @return the aggregate field
      * */
     public int aggregateField() {
-	// some code goes here
-        return afield;
-//	return -1;
+        return afields[0];
+    }
+
+    /**
+     * @return the field of each aggregate
+     */
+    public int[] aggregateFields() {
+        return afields;
     }
 
     /**
@@ -84,45 +183,111 @@ public class Aggregate extends Operator {
      *         tuples
      * */
     public String aggregateFieldName() {
-	// some code goes here
-        return child.getTupleDesc().getFieldName(afield);
-//	return null;
+        return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
      * @return return the aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
-	// some code goes here
-        return aop;
-//	return null;
+        return aops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
 	return aop.toString();
     }
 
+    /**
+     * @return the number of threads Aggregates aggregate their input with
+     */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads Aggregates opened from now on aggregate
+     * their input with.
+     */
+    public static void setParallelism(int threads) {
+        parallelism = Math.max(1, threads);
+    }
+
+    /**
+     * @return the memory budget for the groups of an Aggregate, in
+     *         BufferPool pages
+     */
+    public static int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * Sets the memory budget, in BufferPool pages, for the groups of
+     * Aggregates opened from now on. The workers of a parallel Aggregate
+     * share the budget.
+     */
+    public static void setMemoryPages(int pages) {
+        memoryPages = Math.max(1, pages);
+    }
+
+    /**
+     * @return the number of groups that fit in the memory budget, each
+     *         taking about as much memory as its output tuple
+     */
+    int maxGroups() {
+        long bytes = (long) memoryPages * BufferPool.getPageSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / getTupleDesc().getSize()));
+    }
+
+    /** @return a new, empty aggregator for this aggregate */
+    private Aggregator newAggregator() {
+        return newAggregator(maxGroups());
+    }
+
+    /** @return a new, empty aggregator that keeps at most groups groups */
+    private Aggregator newAggregator(int groups) {
+        TupleDesc td = child.getTupleDesc();
+        Type[] gtypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gtypes[i] = td.getFieldType(gfields[i]);
+        if (aops.length > 1) {
+            Type[] atypes = new Type[afields.length];
+            for (int i = 0; i < afields.length; i++)
+                atypes[i] = td.getFieldType(afields[i]);
+            return new CompositeAggregator(gfields, gtypes, afields, atypes, aops, groups);
+        }
+        if (td.getFieldType(afields[0]) == Type.INT_TYPE)
+            return new IntegerAggregator(gfields, gtypes, afields[0], aops[0], groups);
+        return new StringAggregator(gfields, gtypes, afields[0], aops[0], groups);
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
-        Aggregator ag;
         iter = null;
-        Type gfieldType = null; //field type of groupBy
-        Type afieldType = child.getTupleDesc().getFieldType(afield); //field type of Aggregate column
-        if (gfield!=Aggregator.NO_GROUPING){
-            gfieldType = child.getTupleDesc().getFieldType(gfield);
-        }
-
-        if(afieldType==Type.INT_TYPE){
-            ag = new IntegerAggregator(gfield,gfieldType,afield,aop);
-        } else {
-            ag = new StringAggregator(gfield, gfieldType, afield, aop);
-        }
+        Aggregator ag = newAggregator();
 
         super.open();
         child.open();
-        while (child.hasNext()){
-            ag.mergeTupleIntoGroup(child.next());
+        if (streaming) {
+            iter = ag.iterator(child);
+            iter.open();
+            return;
+        }
+        if (parallelism > 1) {
+            aggregateInParallel(ag);
+        } else {
+            // pull the input a batch at a time
+            TupleBatch batch;
+            while ((batch = child.nextBatch()) != null){
+                ag.mergeBatch(batch);
+            }
         }
 //        child.close();
         iter = ag.iterator();
@@ -130,6 +295,74 @@ public class Aggregate extends Operator {
 
     }
 
+    /** Set when a worker fails, so that the others stop. */
+    private transient volatile boolean failed;
+
+    /**
+     * Aggregates the child's batches on parallelism workers, and merges
+     * their partial aggregates into ag.
+     */
+    private void aggregateInParallel(Aggregator ag)
+            throws DbException, TransactionAbortedException {
+        failed = false;
+        boolean copy = child.reusesBatches();
+        int groups = Math.max(1, maxGroups() / parallelism);
+        List<Future<Aggregator>> partials = new ArrayList<Future<Aggregator>>();
+        for (int i = 0; i < parallelism; i++) {
+            partials.add(ParallelHeapFileIterator.executor().submit(() -> {
+                Aggregator partial = newAggregator(groups);
+                try {
+                    TupleBatch batch;
+                    while (!failed && (batch = nextInput(copy)) != null)
+                        partial.mergeBatch(batch);
+                } catch (Throwable e) {
+                    failed = true;
+                    throw e;
+                }
+                return partial;
+            }));
+        }
+        Throwable failure = null;
+        for (Future<Aggregator> f : partials) {
+            try {
+                ag.merge(f.get());
+            } catch (ExecutionException e) {
+                // the worker's partial is lost, whatever stopped it
+                if (failure == null)
+                    failure = e.getCause();
+            } catch (InterruptedException e) {
+                failed = true;
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while aggregating");
+            }
+        }
+        if (failure instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) failure;
+        if (failure instanceof DbException)
+            throw (DbException) failure;
+        if (failure != null) {
+            DbException e = new DbException("parallel aggregation failed: " + failure);
+            e.initCause(failure);
+            throw e;
+        }
+    }
+
+    /**
+     * @param copy true if the child reuses its batches: the batch is then
+     *        copied before the next worker asks the child for one, since it
+     *        would otherwise be refilled while it is being aggregated
+     * @return the child's next batch, or null at the end
+     */
+    private TupleBatch nextInput(boolean copy) throws DbException, TransactionAbortedException {
+        TupleBatch batch;
+        synchronized (child) {
+            batch = child.nextBatch();
+            if (copy && batch != null)
+                batch = batch.copy();
+        }
+        return batch;
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
      * field is the field by which we are grouping, and the second field is the
@@ -151,10 +384,9 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by a column for each aggregate. A SUM_COUNT aggregate has a
+     * second column, the count.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -162,18 +394,24 @@ public class Aggregate extends Operator {
      * iterator.
      */
     public TupleDesc getTupleDesc() {
-	// some code goes here
-        if(gfield!= Aggregator.NO_GROUPING){
-            Type[] types = {child.getTupleDesc().getFieldType(gfield), child.getTupleDesc().getFieldType(afield)};
-            String[] names = {groupFieldName(), aggregateFieldName()};
-            return new TupleDesc(types,names);
-        } else{
-            Type[] types = {child.getTupleDesc().getFieldType(afield)};
-            String[] names = {aggregateFieldName()};
-            return new TupleDesc(types,names);
+        TupleDesc td = child.getTupleDesc();
+        ArrayList<Type> types = new ArrayList<Type>();
+        ArrayList<String> names = new ArrayList<String>();
+        for (int gfield : gfields) {
+            types.add(td.getFieldType(gfield));
+            names.add(td.getFieldName(gfield));
         }
-
-//	return null;
+        for (int i = 0; i < afields.length; i++) {
+            String name = td.getFieldName(afields[i]);
+            types.add(aops[i] == Aggregator.Op.COUNT ? Type.INT_TYPE : td.getFieldType(afields[i]));
+            names.add(name);
+            if (aops[i] == Aggregator.Op.SUM_COUNT) {
+                // the count that goes with the sum
+                types.add(Type.INT_TYPE);
+                names.add("count(" + name + ")");
+            }
+        }
+        return new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
     }
 
     public void close() {
@@ -76,10 +76,42 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into their groups, as if each had
+     * been passed to mergeTupleIntoGroup. The default does exactly that;
+     * aggregators may read the batch's column vectors instead.
+     *
+     * @param batch the rows to merge
+     */
+    default void mergeBatch(TupleBatch batch) {
+        for (int i = 0; i < batch.numSelected(); i++)
+            mergeTupleIntoGroup(batch.getTuple(batch.getSelected(i)));
+    }
+
+    /**
+     * Merges the groups of partial, an aggregator with the same parameters
+     * that has aggregated another part of the input, into this one. This is
+     * how the partial aggregates of parallel workers are combined.
+     *
+     * @param partial the aggregator to merge, which must not be used after
+     */
+    public void merge(Aggregator partial) throws DbException, TransactionAbortedException;
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
      */
     public OpIterator iterator();
+
+    /**
+     * Create a OpIterator that aggregates the rows of child, whose rows of
+     * each group must be returned one after another, as it is read: a group
+     * is returned as soon as the next one starts, so only the group being
+     * aggregated is kept in memory. Nothing may be merged into this
+     * aggregator; child must be open, and is rewound with the iterator.
+     *
+     * @param child the rows to aggregate, grouped on the group-by fields
+     */
+    public OpIterator iterator(OpIterator child);
     
 }
@@ -21,6 +21,8 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final DbFileChannel channel;
+	private final ExtentAllocator extents;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
@@ -35,6 +37,9 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.channel = new DbFileChannel(f);
+		// the root page of an empty tree is all zeros, but in use
+		this.extents = new ExtentAllocator(f, channel, BTreeRootPtrPage.getPageSize());
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -78,39 +83,18 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(pageBuf, 0);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(pageBuf, pageOffset(id.getPageNumber()));
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -127,17 +111,24 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	private void readFully(byte[] pageBuf, long offset) throws IOException {
+		if (offset + pageBuf.length > channel.size()) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		channel.read(pageBuf, offset);
+	}
+
+	/**
+	 * Returns the offset in the file of page pageNo. Page numbers start at 1;
+	 * the root pointer page comes first and is smaller than the other pages.
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -148,24 +139,32 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
+			extents.written(data.length);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(id.getPageNumber()));
+			extents.written(pageOffset(id.getPageNumber()) + data.length);
 		}
 	}
+
+	/**
+	 * Closes the file handle held open by this BTreeFile. It is reopened if
+	 * the file is accessed again.
+	 */
+	public void close() throws IOException {
+		channel.close();
+		extents.close();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
-		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		// we only ever write full pages; pages preallocated by the extent
+		// allocator but not handed out yet do not count
+		return extents.numPages();
 	}
 
 	/**
@@ -848,13 +847,11 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.write(emptyRootPtrData, 0);
+				channel.write(emptyLeafData, pageOffset(1));
+				extents.written(pageOffset(1) + emptyLeafData.length);
 			}
 		}
 
@@ -909,13 +906,9 @@ public class BTreeFile implements DbFile {
 		// or there are no free slots
 		if(headerId == null) {		
 			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				// take a new, zeroed page from the current extent; page
+				// numbers start at 1
+				emptyPageNo = extents.allocatePages(1) + 1;
 			}
 		}
 
@@ -945,10 +938,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1043,6 +1033,25 @@ public class BTreeFile implements DbFile {
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
+	/**
+	 * Pin a leaf page for an iterator that is about to read it, releasing the
+	 * pin the iterator held on its previous leaf.
+	 * 
+	 * @param tid - the transaction id
+	 * @param page - the leaf page to pin, or null to only release the old pin
+	 * @param old - the handle of the previously pinned leaf, or null
+	 * @return the handle pinning page, or null if page is null
+	 */
+	BufferPool.PageHandle pinLeafPage(TransactionId tid, BTreeLeafPage page, BufferPool.PageHandle old)
+			throws DbException, TransactionAbortedException {
+		BufferPool.PageHandle handle = null;
+		if (page != null)
+			handle = Database.getBufferPool().pinPage(tid, page.getId(), Permissions.READ_ONLY);
+		if (old != null)
+			old.close();
+		return handle;
+	}
+
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
@@ -1072,12 +1081,15 @@ public class BTreeFile implements DbFile {
 }
 
 /**
- * Helper class that implements the Java Iterator for tuples on a BTreeFile
+ * Helper class that implements the Java Iterator for tuples on a BTreeFile.
+ * The leaf page being read is pinned in the BufferPool until the iterator
+ * moves past it.
  */
 class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BufferPool.PageHandle handle = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1100,6 +1112,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		handle = f.pinLeafPage(tid, curp, handle);
 		it = curp.iterator();
 	}
 
@@ -1118,10 +1131,12 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
 				curp = null;
+				handle = f.pinLeafPage(tid, null, handle);
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				handle = f.pinLeafPage(tid, curp, handle);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1148,6 +1163,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		if (handle != null) {
+			handle.close();
+			handle = null;
+		}
 	}
 }
 
@@ -1159,6 +1178,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BufferPool.PageHandle handle = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1191,6 +1211,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
+		handle = f.pinLeafPage(tid, curp, handle);
 		it = curp.iterator();
 	}
 
@@ -1231,6 +1252,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				handle = f.pinLeafPage(tid, curp, handle);
 				it = curp.iterator();
 			}
 		}
@@ -1252,5 +1274,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if (handle != null) {
+			handle.close();
+			handle = null;
+		}
 	}
 }
@@ -4,6 +4,12 @@ import java.io.*;
 import java.util.*;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,6 +19,19 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages live in a fixed array of frames. Lookups of resident pages go
+ * through a concurrent page table and never block; loading a missing page
+ * only locks the stripe its id hashes to, so misses on different pages are
+ * read in parallel. Each frame carries a pin count, and eviction never
+ * takes a frame that is pinned.
+ * <p>
+ * Callers that keep using a page across calls (e.g. a file iterator
+ * walking the tuples of its current page) should hold it through
+ * {@link #pinPage}, which keeps the page resident until the returned
+ * {@link PageHandle} is closed. Pinned frames are withdrawn from the
+ * replacement policy, so eviction picks the coldest unpinned page without
+ * having to step over them.
  *
  * @Threadsafe, all fields are final
  */
@@ -26,19 +45,129 @@ public class BufferPool {
      other classes. BufferPool should use the numPages argument to the
      constructor instead. */
     public static final int DEFAULT_PAGES = 50;
-    Queue<PageId> LRU = new LinkedList<>();
 
-    private int numPages;
-    private HashMap<PageId, Page> cache;
+    /** Default upper bound on how many pages a sequential scan reads ahead. */
+    public static final int DEFAULT_MAX_READ_AHEAD = 32;
+
+    /** Smallest useful read-ahead window; see {@link #getReadAheadLimit}. */
+    public static final int MIN_READ_AHEAD = 4;
+
+    private static int maxReadAhead = DEFAULT_MAX_READ_AHEAD;
+
+    /** Number of background threads serving read-ahead requests. */
+    private static final int IO_THREADS = 2;
+
+    /** Number of lock stripes guarding page loads; a power of two. */
+    private static final int NUM_STRIPES = 64;
+
+    /** Pin count of a frame that is free or is being evicted. */
+    private static final int UNAVAILABLE = -1;
+
+    /**
+     * One slot of the frame table. A frame can be pinned only while its pin
+     * count is non-negative; eviction and freeing swing the count from 0 to
+     * UNAVAILABLE, so a pinned frame can never be reused underneath a reader.
+     * handlePins counts the subset of pins held through a PageHandle; only
+     * those are reported to the replacement policy. Eviction unmaps the page
+     * under the frame's monitor and notifies it, so loaders of that page can
+     * wait for the eviction to finish.
+     */
+    private static class Frame {
+        final int index;
+        final AtomicInteger pinCount = new AtomicInteger(UNAVAILABLE);
+        final AtomicInteger handlePins = new AtomicInteger(0);
+        volatile PageId pid;
+        volatile Page page;
+        /** Set when the page is discarded while pinned; freed on last unpin. */
+        volatile boolean discarded;
+
+        Frame(int index) {
+            this.index = index;
+        }
+    }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * A pinned reference to a page in the BufferPool, obtained from
+     * {@link BufferPool#pinPage}. The page stays resident, and is not
+     * considered for eviction, until the handle is closed.
+     */
+    public class PageHandle implements AutoCloseable {
+        private final Frame frame;
+        private final Page page;
+        private boolean closed = false;
+
+        private PageHandle(Frame frame) {
+            this.frame = frame;
+            this.page = frame.page;
+        }
+
+        /** @return the pinned page */
+        public Page getPage() {
+            return page;
+        }
+
+        /** Unpins the page; calling this more than once has no effect. */
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (frame.handlePins.decrementAndGet() == 0)
+                updateEvictable(frame);
+            unpin(frame);
+        }
+    }
+
+    private final int numPages;
+    private final Frame[] frames;
+    /** Maps each resident page to the index of its frame. */
+    private final ConcurrentHashMap<PageId, Integer> pageTable;
+    private final ConcurrentLinkedQueue<Integer> freeFrames;
+    /** Serializes loads of the same page; pages on other stripes load in parallel. */
+    private final Object[] stripes;
+    /** Guarded by its own monitor. */
+    private final ReplacementPolicy policy;
+    /** Background reader for prefetched pages; starts threads on first use. */
+    private final ThreadPoolExecutor ioExecutor;
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * pages as chosen by the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy, sized for numPages frames.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         this.numPages = numPages;
-        this.cache = new HashMap<PageId, Page>(numPages);
+        this.frames = new Frame[numPages];
+        this.pageTable = new ConcurrentHashMap<PageId, Integer>(numPages);
+        this.freeFrames = new ConcurrentLinkedQueue<Integer>();
+        for (int i = 0; i < numPages; i++) {
+            frames[i] = new Frame(i);
+            freeFrames.add(i);
+        }
+        this.stripes = new Object[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++)
+            stripes[i] = new Object();
+        this.policy = policy;
+        this.ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BufferPool read-ahead");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        ioExecutor.allowCoreThreadTimeOut(true);
     }
 
     public static int getPageSize() {
@@ -55,6 +184,57 @@ public class BufferPool {
         BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    public static int getMaxReadAhead() {
+        return maxReadAhead;
+    }
+
+    /**
+     * Sets the largest read-ahead window, in pages, that a sequential scan
+     * may grow to. 0 disables read-ahead.
+     */
+    public static void setMaxReadAhead(int pages) {
+        BufferPool.maxReadAhead = pages;
+    }
+
+    /**
+     * @return the largest read-ahead window for this pool: the configured
+     *     maximum, capped at a quarter of the pool so that a scan's own
+     *     prefetched pages do not push each other out. Pools too small to
+     *     hold a window of {@link #MIN_READ_AHEAD} pages do not read ahead,
+     *     as prefetching would only compete with pinned pages for frames.
+     */
+    public int getReadAheadLimit() {
+        int limit = Math.min(maxReadAhead, numPages / 4);
+        return limit < MIN_READ_AHEAD ? 0 : limit;
+    }
+
+    /** @return true if the page is currently held in the buffer pool */
+    public boolean isResident(PageId pid) {
+        return pageTable.containsKey(pid);
+    }
+
+    /**
+     * Asks for pid to be read into the buffer pool in the background. The
+     * request is dropped if the page is already resident, and any error
+     * while reading it is ignored; a later getPage simply reads it again.
+     *
+     * @param pid the ID of the page to prefetch
+     */
+    public void prefetchPage(final PageId pid) {
+        if (isResident(pid))
+            return;
+        ioExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!isResident(pid))
+                        unpin(pin(pid));
+                } catch (Exception e) {
+                    // read-ahead is only a hint
+                }
+            }
+        });
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -72,21 +252,177 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        if(cache.containsKey(pid)){
-            LRU.add(pid);
-            return(cache.get(pid));
-        } else {
-            //Eviction done in later labs
-            if (cache.size() >= numPages ){
-//                System.out.println("Not implemented cache eviction");
-                evictPage();
+        Frame frame = pin(pid);
+        Page page = frame.page;
+        unpin(frame);
+        return page;
+    }
 
+    /**
+     * Retrieve the specified page like {@link #getPage}, and keep it pinned
+     * in the buffer pool until the returned handle is closed. A pinned page
+     * is never evicted, so callers may keep reading it across calls.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return a handle that must be closed once the page is no longer used
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        Frame frame = pin(pid);
+        if (frame.handlePins.incrementAndGet() == 1)
+            updateEvictable(frame);
+        return new PageHandle(frame);
+    }
+
+    /**
+     * Returns the pinned frame holding pid, reading the page from disk if
+     * it is not resident.
+     */
+    private Frame pin(PageId pid) throws DbException {
+        Frame frame = pinResident(pid);
+        if (frame == null) {
+            synchronized (stripeFor(pid)) {
+                frame = waitForResident(pid);
+                if (frame == null) {
+                    DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    frame = load(file.readPage(pid));
+                }
             }
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page newPage = file.readPage(pid);
-            cache.put(pid, newPage);
-            LRU.add(pid);
-            return newPage;
+        }
+        return frame;
+    }
+
+    /** Pin frame if it is in use and still holds pid. */
+    private boolean tryPin(Frame frame, PageId pid) {
+        while (true) {
+            int c = frame.pinCount.get();
+            if (c < 0)
+                return false;
+            if (frame.pinCount.compareAndSet(c, c + 1))
+                break;
+        }
+        if (!pid.equals(frame.pid) || frame.discarded) {
+            unpin(frame);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops one pin on frame. The last unpin of a page that was discarded
+     * while pinned returns the frame to the free list.
+     */
+    private void unpin(Frame frame) {
+        if (frame.pinCount.decrementAndGet() == 0 && frame.discarded
+                && frame.pinCount.compareAndSet(0, UNAVAILABLE)) {
+            frame.page = null;
+            frame.pid = null;
+            frame.discarded = false;
+            freeFrames.add(frame.index);
+        }
+    }
+
+    /**
+     * Tells the replacement policy whether frame may be evicted, based on
+     * its current number of handle pins. The count is re-read under the
+     * policy monitor, so concurrent pin and unpin calls always leave the
+     * policy with the latest state.
+     */
+    private void updateEvictable(Frame frame) {
+        synchronized (policy) {
+            if (frame.pinCount.get() >= 0 && !frame.discarded)
+                policy.setEvictable(frame.index, frame.handlePins.get() == 0);
+        }
+    }
+
+    private Object stripeFor(PageId pid) {
+        return stripes[pid.hashCode() & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * Looks pid up in the page table without taking any lock.
+     *
+     * @return the pinned frame holding pid, or null if it is not resident
+     */
+    private Frame pinResident(PageId pid) {
+        Integer index = pageTable.get(pid);
+        if (index == null)
+            return null;
+        Frame frame = frames[index];
+        if (!tryPin(frame, pid))
+            return null;
+        // hits are not serialized; see ReplacementPolicy#pageAccessed
+        policy.pageAccessed(index);
+        return frame;
+    }
+
+    /**
+     * Like {@link #pinResident}, but if pid is in the middle of being
+     * evicted, blocks on the frame until the eviction is over. Must be
+     * called with the stripe of pid held.
+     */
+    private Frame waitForResident(PageId pid) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Frame frame = pinResident(pid);
+                if (frame != null)
+                    return frame;
+                Integer index = pageTable.get(pid);
+                if (index == null)
+                    return null;
+                frame = frames[index];
+                synchronized (frame) {
+                    // a mapped frame is unavailable only while evictPage writes it out
+                    if (frame.pinCount.get() == UNAVAILABLE && index.equals(pageTable.get(pid))) {
+                        try {
+                            frame.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Places page into an empty frame, evicting a page if the pool is full,
+     * and publishes it in the page table. Must be called with the stripe of
+     * the page held, and only when the page is not already resident.
+     *
+     * @return the frame now holding page, pinned once for the caller
+     */
+    private Frame load(Page page) throws DbException {
+        Frame frame = allocateFrame();
+        frame.pid = page.getId();
+        frame.page = page;
+        frame.pinCount.set(1);
+        synchronized (policy) {
+            policy.pageLoaded(frame.index, frame.pid);
+        }
+        pageTable.put(frame.pid, frame.index);
+        return frame;
+    }
+
+    /**
+     * Places page in the frame table, replacing the resident version of the
+     * same page if there is one, and evicting a page if the pool is full.
+     */
+    private void installPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        synchronized (stripeFor(pid)) {
+            Frame frame = waitForResident(pid);
+            if (frame != null)
+                frame.page = page;
+            else
+                frame = load(page);
+            unpin(frame);
         }
     }
 
@@ -152,15 +488,39 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         ArrayList<Page> modifiedPages;
-        HeapFile file= (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         modifiedPages = file.insertTuple(tid, t);
         for (Page p : modifiedPages){
             p.markDirty(true, tid);
-            cache.put(p.getId(), p);
+            installPage(p);
         }
 
     }
 
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid. The file places as many tuples as fit on each page before moving
+     * on, so each page is located, marked dirty and cached once per batch
+     * instead of once per tuple.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @see DbFile#insertTuples
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        for (Page p : file.insertTuples(tid, tuples)) {
+            // the file marked p dirty as it went; if p is clean and gone
+            // from the pool, it was evicted and written back in the meantime
+            if (p.isDirty() == null && !isResident(p.getId()))
+                continue;
+            p.markDirty(true, tid);
+            installPage(p);
+        }
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -179,11 +539,11 @@ public class BufferPool {
         ArrayList<Page> modifiedPages;
         RecordId rid = t.getRecordId();
 
-        HeapFile file= (HeapFile) Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+        DbFile file = Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
         modifiedPages = file.deleteTuple(tid, t);
         for (Page p : modifiedPages){
             p.markDirty(true, tid);
-            cache.put(p.getId(), p);
+            installPage(p);
         }
     }
 
@@ -192,9 +552,9 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         try{
-            for (PageId key : cache.keySet()) {
+            for (PageId key : pageTable.keySet()) {
                 flushPage(key);
             }
 
@@ -213,21 +573,48 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
-        Page page = cache.get(pid);
-        cache.remove(page);
-        page.markDirty(false, null);
+    public void discardPage(PageId pid) {
+        synchronized (stripeFor(pid)) {
+            Frame frame = waitForResident(pid);
+            if (frame == null)
+                return;
+            pageTable.remove(pid, frame.index);
+            frame.page.markDirty(false, null);
+            frame.discarded = true;
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).pageDiscarded(pid);
+            synchronized (policy) {
+                policy.frameFreed(frame.index);
+            }
+            // frees the frame now, or when the last holder unpins it
+            unpin(frame);
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         //get file using catalog and write to disk
-        Page page = cache.get(pid);
-        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-        hf.writePage(page);
+        Integer index = pageTable.get(pid);
+        if (index == null)
+            return;
+        Frame frame = frames[index];
+        if (!tryPin(frame, pid))
+            return;
+        try {
+            writeFrame(frame);
+        } finally {
+            unpin(frame);
+        }
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+        Page page = frame.page;
+        if (page.isDirty() == null)
+            return;
+        DbFile file = Database.getCatalog().getDatabaseFile(frame.pid.getTableId());
+        file.writePage(page);
         page.markDirty(false, null);
     }
 
@@ -238,25 +625,60 @@ public class BufferPool {
         // not necessary for lab1|lab2
     }
 
+    /**
+     * Returns a free frame, evicting a page to make one if necessary. The
+     * returned frame is owned by the caller and cannot be pinned by anyone
+     * else until the caller publishes it.
+     */
+    private Frame allocateFrame() throws DbException {
+        Integer index = freeFrames.poll();
+        if (index != null)
+            return frames[index];
+        return evictPage();
+    }
+
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The page to discard is chosen by the replacement policy, which only
+     * offers frames without handle pins. A frame that is briefly pinned by a
+     * concurrent getPage is handed back to the policy and skipped, even if
+     * it has been unpinned again since, so that it stays evictable.
+     *
+     * @return the emptied frame, owned by the caller
      */
-    private synchronized  void evictPage() throws DbException {
-        PageId pid = LRU.peek();
-        Page evictPage;
-        if (pid != null){
-            evictPage = cache.get(pid);
+    private Frame evictPage() throws DbException {
+        for (int attempt = 0; attempt <= numPages; attempt++) {
+            int index;
+            synchronized (policy) {
+                index = policy.victim();
+            }
+            if (index == -1)
+                break;
+            Frame frame = frames[index];
+            if (!frame.pinCount.compareAndSet(0, UNAVAILABLE)) {
+                synchronized (policy) {
+                    if (frame.pinCount.get() >= 0 && !frame.discarded) {
+                        policy.pageLoaded(index, frame.pid);
+                        policy.setEvictable(index, frame.handlePins.get() == 0);
+                    }
+                }
+                continue;
+            }
             try{
-                flushPage(pid);
+                writeFrame(frame);
             }catch (IOException e){
                 e.printStackTrace();
             }
-
-            cache.remove(pid);
-            LRU.remove(pid);
+            synchronized (frame) {
+                pageTable.remove(frame.pid, index);
+                frame.notifyAll();
+            }
+            frame.page = null;
+            frame.pid = null;
+            return frame;
         }
-
+        throw new DbException("no page in the buffer pool can be evicted");
     }
 
-}
\ No newline at end of file
+}
@@ -152,8 +152,19 @@ public class Catalog {
         return(table.getName());
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their open files */
     public void clear() {
+        for (TItem table : TItemById.values()) {
+            try {
+                DbFile file = table.getDbFile();
+                if (file instanceof HeapFile)
+                    ((HeapFile) file).close();
+                else if (file instanceof BTreeFile)
+                    ((BTreeFile) file).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         TItemById.clear();
         TItemByName.clear();
         return;
@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK (second chance) replacement. Every frame has a reference bit that is
+ * set on each hit; the clock hand sweeps the frames, clearing set bits, and
+ * evicts the first frame whose bit is already clear. A hit only flips a bit,
+ * and a sweep visits each frame at most twice. The bits are atomic, so hits
+ * are noted without any lock.
+ * <p>
+ * The clock is a ring linking only the frames that may be evicted: a frame
+ * leaves the ring while it is pinned, or once it is freed, and joins it
+ * again just behind the hand. The hand therefore never steps over pinned
+ * or empty frames, however many of them there are.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private static final int NONE = -1;
+
+    private final boolean[] resident;
+    private final AtomicIntegerArray referenced;
+    /** The ring of evictable frames, linked through prev and next. */
+    private final int[] prev;
+    private final int[] next;
+    private final boolean[] inRing;
+    /** The next frame the hand looks at, or NONE if the ring is empty. */
+    private int hand = NONE;
+    private int ringSize = 0;
+
+    /**
+     * @param numFrames the number of frames in the BufferPool
+     */
+    public ClockReplacementPolicy(int numFrames) {
+        this.resident = new boolean[numFrames];
+        this.referenced = new AtomicIntegerArray(numFrames);
+        this.prev = new int[numFrames];
+        this.next = new int[numFrames];
+        this.inRing = new boolean[numFrames];
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        resident[frame] = true;
+        referenced.set(frame, 1);
+        join(frame);
+    }
+
+    public void pageAccessed(int frame) {
+        // skip the store when the bit is set, to keep hot frames' cache lines shared
+        if (referenced.get(frame) == 0)
+            referenced.set(frame, 1);
+    }
+
+    public void frameFreed(int frame) {
+        resident[frame] = false;
+        referenced.set(frame, 0);
+        leave(frame);
+    }
+
+    public void setEvictable(int frame, boolean evictable) {
+        if (!resident[frame])
+            return;
+        if (evictable)
+            join(frame);
+        else
+            leave(frame);
+    }
+
+    public int victim() {
+        // two full sweeps are enough: the first clears every reference bit
+        for (int i = 0; i < 2 * ringSize; i++) {
+            int frame = hand;
+            hand = next[frame];
+            if (referenced.getAndSet(frame, 0) != 0)
+                continue;
+            resident[frame] = false;
+            leave(frame);
+            return frame;
+        }
+        return NONE;
+    }
+
+    /** Adds frame to the ring just behind the hand, so it is swept last. */
+    private void join(int frame) {
+        if (inRing[frame])
+            return;
+        if (hand == NONE) {
+            prev[frame] = frame;
+            next[frame] = frame;
+            hand = frame;
+        } else {
+            prev[frame] = prev[hand];
+            next[frame] = hand;
+            next[prev[hand]] = frame;
+            prev[hand] = frame;
+        }
+        inRing[frame] = true;
+        ringSize++;
+    }
+
+    /** Unlinks frame from the ring; does nothing if it is not in it. */
+    private void leave(int frame) {
+        if (!inRing[frame])
+            return;
+        if (next[frame] == frame) {
+            hand = NONE;
+        } else {
+            next[prev[frame]] = next[frame];
+            prev[next[frame]] = prev[frame];
+            if (hand == frame)
+                hand = next[frame];
+        }
+        inRing[frame] = false;
+        ringSize--;
+    }
+}
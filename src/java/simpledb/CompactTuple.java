@@ -0,0 +1,131 @@
+package simpledb;
+
+/**
+ * A tuple that keeps its values in primitive form: INT_TYPE fields in an
+ * int[], and STRING_TYPE fields as the offset of their bytes in a byte arena
+ * that is shared by many tuples. Reading a field with getInt or getString
+ * allocates no Field, and the tuple needs neither a Field[] nor one object
+ * per field. Strings only take the bytes they use, instead of being padded
+ * to Type.STRING_LEN.
+ * <p>
+ * The Field based methods of Tuple still work: getField creates (and keeps)
+ * a Field the first time it is asked for one. Setting a field decodes the
+ * whole tuple into Fields, which are used from then on.
+ * <p>
+ * CompactTuples are created by an {@link Arena}, e.g. by operators that keep
+ * many tuples in memory.
+ */
+public class CompactTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The int value, or the offset in arena of the string, of each field. */
+    private final int[] values;
+    private final transient byte[] arena;
+    private volatile boolean modified;
+
+    private CompactTuple(TupleDesc td, int[] values, byte[] arena) {
+        super(td);
+        this.values = values;
+        this.arena = arena;
+    }
+
+    public int getInt(int i) {
+        if (modified)
+            return super.getInt(i);
+        return values[i];
+    }
+
+    public String getString(int i) {
+        if (modified)
+            return super.getString(i);
+        int offset = values[i];
+        int len = ((arena[offset] & 0xff) << 8) | (arena[offset + 1] & 0xff);
+        return new String(arena, offset + 2, len);
+    }
+
+    public Field getField(int i) {
+        Field f = super.getField(i);
+        if (f == null && !modified) {
+            if (getTupleDesc().getFieldType(i) == Type.INT_TYPE)
+                f = new IntField(values[i]);
+            else
+                f = new StringField(getString(i), Type.STRING_LEN);
+            super.setField(i, f);
+        }
+        return f;
+    }
+
+    public void setField(int i, Field f) {
+        for (int j = 0; j < getTupleDesc().numFields(); j++)
+            getField(j);
+        modified = true;
+        super.setField(i, f);
+    }
+
+    /** Serialize as a plain Tuple, rather than with the whole arena. */
+    private Object writeReplace() {
+        Tuple t = new Tuple(getTupleDesc());
+        for (int j = 0; j < getTupleDesc().numFields(); j++)
+            t.setField(j, getField(j));
+        t.setRecordId(getRecordId());
+        return t;
+    }
+
+    /**
+     * Copies tuples into CompactTuples whose strings share large byte
+     * arrays. Each string is stored as a two byte length and its bytes.
+     * Once a chunk is full a new one is started; chunks are only freed
+     * when all of their tuples are.
+     */
+    public static class Arena {
+
+        /** The size of the byte arrays strings are packed into. */
+        public static final int CHUNK_SIZE = 1 << 16;
+
+        private byte[] chunk = null;
+        private int used = 0;
+
+        /**
+         * @return a CompactTuple with the values and RecordId of t. The
+         *         values are read with getInt and getString, so copying a
+         *         tuple that is not Field based creates no Fields.
+         */
+        public CompactTuple copy(Tuple t) {
+            TupleDesc td = t.getTupleDesc();
+            int n = td.numFields();
+            int[] values = new int[n];
+            byte[][] strings = null;
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    values[i] = t.getInt(i);
+                } else {
+                    if (strings == null)
+                        strings = new byte[n][];
+                    strings[i] = t.getString(i).getBytes();
+                    size += 2 + strings[i].length;
+                }
+            }
+            if (strings != null) {
+                if (chunk == null || used + size > chunk.length) {
+                    chunk = new byte[Math.max(CHUNK_SIZE, size)];
+                    used = 0;
+                }
+                for (int i = 0; i < n; i++) {
+                    byte[] s = strings[i];
+                    if (s == null)
+                        continue;
+                    values[i] = used;
+                    chunk[used++] = (byte) (s.length >> 8);
+                    chunk[used++] = (byte) s.length;
+                    System.arraycopy(s, 0, chunk, used, s.length);
+                    used += s.length;
+                }
+            }
+            CompactTuple c = new CompactTuple(td, values, strings == null ? null : chunk);
+            c.setRecordId(t.getRecordId());
+            return c;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Computes several aggregates per group in one pass over the input. A
+ * group's state holds the state of each aggregate, which is updated and
+ * turned into result fields by an IntegerAggregator or StringAggregator
+ * for that aggregate alone.
+ */
+public class CompositeAggregator extends HashAggregator<Object[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] afields;
+    private final Type[] afieldtypes;
+    private final Op[] ops;
+    /** The aggregator of each aggregate; only its state methods are used. */
+    @SuppressWarnings("rawtypes")
+    private final HashAggregator[] parts;
+
+    /**
+     * @param gbfields
+     *            the group-by fields, none if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the field of each aggregate
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param ops
+     *            the aggregation operator of each aggregate
+     * @param maxGroups
+     *            the memory budget, in groups
+     */
+    public CompositeAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] ops, int maxGroups) {
+        super(gbfields, gbfieldtypes, maxGroups);
+        this.afields = afields;
+        this.afieldtypes = afieldtypes;
+        this.ops = ops;
+        this.parts = new HashAggregator[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            if (afieldtypes[i] == Type.INT_TYPE)
+                parts[i] = new IntegerAggregator(NO_GROUPING, null, afields[i], ops[i]);
+            else
+                parts[i] = new StringAggregator(NO_GROUPING, null, afields[i], ops[i]);
+        }
+    }
+
+    Object[] newState() {
+        Object[] state = new Object[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            state[i] = parts[i].newState();
+        return state;
+    }
+
+    @SuppressWarnings("unchecked")
+    void add(Object[] state, Tuple t) {
+        for (int i = 0; i < parts.length; i++)
+            parts[i].add(state[i], t);
+    }
+
+    @SuppressWarnings("unchecked")
+    void add(Object[] state, TupleBatch batch, int row) {
+        for (int i = 0; i < parts.length; i++)
+            parts[i].add(state[i], batch, row);
+    }
+
+    @SuppressWarnings("unchecked")
+    void combine(Object[] state, Object[] other) {
+        for (int i = 0; i < parts.length; i++)
+            parts[i].combine(state[i], other[i]);
+    }
+
+    List<Type> resultTypes() {
+        List<Type> types = new ArrayList<Type>();
+        for (HashAggregator<?> part : parts)
+            types.addAll(part.resultTypes());
+        return types;
+    }
+
+    @SuppressWarnings("unchecked")
+    void setResult(Tuple t, int i, Object[] state) {
+        for (int j = 0; j < parts.length; j++) {
+            parts[j].setResult(t, i, state[j]);
+            i += parts[j].resultTypes().size();
+        }
+    }
+
+    CompositeAggregator create() {
+        return new CompositeAggregator(gbfields, gbfieldtypes, afields, afieldtypes, ops,
+                Integer.MAX_VALUE);
+    }
+}
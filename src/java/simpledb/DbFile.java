@@ -43,6 +43,34 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts all of the given tuples into the file on behalf of transaction.
+     * Each page that is modified is marked dirty by tid as soon as it has
+     * been changed, so it is written back if the BufferPool evicts it
+     * before the batch is complete, and it is returned only once.
+     * <p>
+     * The default implementation inserts the tuples one at a time; files
+     * that can place many tuples on a page at once should override it.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add. Each is updated to reflect that it is
+     *          now stored in this file.
+     * @return An ArrayList containing the pages that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public default ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        LinkedHashMap<PageId, Page> modified = new LinkedHashMap<PageId, Page>();
+        while (tuples.hasNext()) {
+            for (Page p : insertTuple(tid, tuples.next())) {
+                p.markDirty(true, tid);
+                modified.put(p.getId(), p);
+            }
+        }
+        return new ArrayList<Page>(modified.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -59,6 +87,19 @@ public interface DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Called when the BufferPool throws away its cached copy of a page of
+     * this file without writing it, e.g. when the transaction that changed
+     * it is rolled back. Files that keep summaries of their pages' contents
+     * should forget what they learned from the discarded copy.
+     * <p>
+     * The default implementation does nothing.
+     *
+     * @param pid The page that was discarded
+     */
+    public default void pageDiscarded(PageId pid) {
+    }
+
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
      * iterator must use {@link BufferPool#getPage}, rather than
@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DbFileChannel is the open file handle behind a DbFile. The underlying
+ * FileChannel is opened on first use and then kept open, so reading or
+ * writing a page costs a single positional read or write instead of an
+ * open, a seek, the transfer and a close.
+ * <p>
+ * All transfers are positional ({@link FileChannel#read(ByteBuffer, long)}
+ * and {@link FileChannel#write(ByteBuffer, long)}), so threads reading
+ * different pages of the same table do not share a file pointer and need no
+ * locking. After {@link #close} the channel is reopened on the next access.
+ * <p>
+ * A FileChannel is closed for everyone when a thread that uses it is
+ * interrupted. The interrupted thread gets the ClosedByInterruptException;
+ * the channel is reopened for the next access, and transfers of other
+ * threads that the close cut short are retried once.
+ * <p>
+ * The channel is opened read-only until the first write, so that reading a
+ * file that does not exist fails instead of creating it.
+ *
+ * @see HeapFile
+ * @see BTreeFile
+ */
+public class DbFileChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+    /** Whether channel was opened for writing. */
+    private volatile boolean writable;
+    /**
+     * Read-only channels replaced by a writable one, which readers may
+     * still be using; closed with the current channel.
+     */
+    private final List<FileChannel> retired = new ArrayList<FileChannel>();
+
+    /**
+     * @param file the file this channel reads and writes
+     */
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return an open channel on the file, writable if write is set
+     */
+    private FileChannel channel(boolean write) throws IOException {
+        FileChannel c = channel;
+        if (c != null && c.isOpen() && (writable || !write))
+            return c;
+        synchronized (this) {
+            c = channel;
+            if (c != null && c.isOpen() && (writable || !write))
+                return c;
+            if (c != null && c.isOpen())
+                retired.add(c);
+            // a channel closed by an interrupt comes back in the same mode
+            boolean rw = write || writable;
+            c = new RandomAccessFile(file, rw ? "rw" : "r").getChannel();
+            writable = rw;
+            channel = c;
+            return c;
+        }
+    }
+
+    /**
+     * Lets a transfer whose channel was closed under it be retried once,
+     * unless the current thread is the one that was interrupted.
+     */
+    private void retry(ClosedChannelException e, boolean retried) throws ClosedChannelException {
+        if (retried || Thread.currentThread().isInterrupted())
+            throw e;
+    }
+
+    /**
+     * Reads exactly data.length bytes starting at offset into data.
+     *
+     * @throws EOFException if the file ends before data is filled
+     */
+    public void read(byte[] data, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        boolean retried = false;
+        while (buf.hasRemaining()) {
+            int n;
+            try {
+                n = channel(false).read(buf, offset + buf.position());
+            } catch (ClosedChannelException e) {
+                retry(e, retried);
+                retried = true;
+                continue;
+            }
+            if (n < 0)
+                throw new EOFException("read past end of " + file);
+        }
+    }
+
+    /**
+     * Writes all of data to the file starting at offset, growing the file
+     * if needed.
+     */
+    public void write(byte[] data, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        boolean retried = false;
+        while (buf.hasRemaining()) {
+            try {
+                channel(true).write(buf, offset + buf.position());
+            } catch (ClosedChannelException e) {
+                retry(e, retried);
+                retried = true;
+            }
+        }
+    }
+
+    /**
+     * Writes data at the current end of the file.
+     *
+     * @return the offset data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long offset = size();
+        write(data, offset);
+        return offset;
+    }
+
+    /**
+     * Maps the first size bytes of the file into memory, read-only. The
+     * mapping stays valid after the channel is closed, and reflects later
+     * writes to the mapped region.
+     */
+    public MappedByteBuffer map(long size) throws IOException {
+        return channel(false).map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        try {
+            return channel(false).size();
+        } catch (ClosedChannelException e) {
+            retry(e, false);
+            return channel(false).size();
+        }
+    }
+
+    /** Closes the channel; it is reopened by the next read or write. */
+    public synchronized void close() throws IOException {
+        FileChannel c = channel;
+        channel = null;
+        writable = false;
+        for (FileChannel r : retired)
+            r.close();
+        retired.clear();
+        if (c != null)
+            c.close();
+    }
+}
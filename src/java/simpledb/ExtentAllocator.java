@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * ExtentAllocator hands out new pages at the end of a DbFile's data file.
+ * Instead of extending the file by one page per request, it grows the file
+ * by a whole extent of zeroed pages at a time ({@link #getExtentSize}
+ * bytes, 1 MB by default) and then hands pages out of that extent. A bulk
+ * load thus pays for one file extension per extent instead of one per page,
+ * and consecutive pages of a table end up next to each other on disk.
+ * <p>
+ * Pages of the current extent that have not been handed out yet are not
+ * part of the file as far as {@link #numPages} is concerned. The end of the
+ * pages handed out is kept in a small side file next to the data file (the
+ * data file's name plus {@link #SUFFIX}), together with the length of the
+ * data file it applies to; an allocator opening the file picks up where the
+ * last one stopped. The side file is only created once the file has an
+ * unused tail. If the data file does not have the recorded length, it was
+ * changed behind the allocator's back, and its actual length is used
+ * instead; the same happens if it is changed later on.
+ * <p>
+ * {@link #numPages} checks the file's length to notice such changes;
+ * {@link #cachedNumPages} does not, for callers that ask once per page read.
+ *
+ * @see HeapFile
+ * @see BTreeFile
+ */
+public class ExtentAllocator {
+
+    /** Default extent size in bytes. */
+    public static final int DEFAULT_EXTENT_SIZE = 1 << 20;
+
+    /** Appended to the data file's name to get the name of the side file. */
+    public static final String SUFFIX = ".ext";
+
+    private static int extentSize = DEFAULT_EXTENT_SIZE;
+
+    private final File file;
+    private final DbFileChannel channel;
+    private final long base;
+    /** Holds end and fileLength, as two longs. */
+    private final DbFileChannel markChannel;
+    /** Whether the side file exists. */
+    private boolean marked;
+    /** Length of the file on disk, as last seen or grown to. */
+    private long fileLength;
+    /** End of the last page handed out; at most fileLength. */
+    private long end;
+
+    /**
+     * @param file the data file
+     * @param channel the channel used to write to file
+     * @param base offset of the first page in the file, e.g. to skip a
+     *     fixed size header
+     */
+    public ExtentAllocator(File file, DbFileChannel channel, long base) {
+        this.file = file;
+        this.channel = channel;
+        this.base = base;
+        File f = markFile(file);
+        this.markChannel = new DbFileChannel(f);
+        this.marked = f.exists();
+        this.fileLength = file.length();
+        this.end = fileLength;
+        if (marked) {
+            try {
+                byte[] data = new byte[16];
+                markChannel.read(data, 0);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                long markedEnd = in.readLong();
+                if (in.readLong() == fileLength && markedEnd >= base && markedEnd <= fileLength)
+                    end = markedEnd;
+            } catch (IOException e) {
+                e.printStackTrace(); // count the whole file as in use
+            }
+        }
+    }
+
+    private static File markFile(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Removes the side file of a data file, if it has one. Used when the
+     * data file is rewritten from scratch.
+     */
+    public static void delete(File file) {
+        markFile(file).delete();
+    }
+
+    public static int getExtentSize() {
+        return extentSize;
+    }
+
+    /**
+     * Sets the number of bytes by which files grow when they run out of
+     * pages. Rounded up to whole pages; 0 grows files a page at a time.
+     */
+    public static void setExtentSize(int bytes) {
+        ExtentAllocator.extentSize = bytes;
+    }
+
+    /** @return the number of bytes of the file that are in use */
+    private long length() {
+        long len = file.length();
+        if (len != fileLength) {
+            // someone else changed the file
+            fileLength = len;
+            end = len;
+        }
+        return end;
+    }
+
+    /**
+     * Records end and fileLength in the side file. Not needed while the
+     * file has no unused tail and no side file, as the file's length then
+     * says it all.
+     */
+    private void mark() throws IOException {
+        if (!marked && end == fileLength)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(end);
+        out.writeLong(fileLength);
+        markChannel.write(bytes.toByteArray(), 0);
+        marked = true;
+    }
+
+    /**
+     * @return the number of pages in use, not counting the unused part of
+     *     the last extent
+     */
+    public synchronized int numPages() {
+        return pages(length());
+    }
+
+    /**
+     * @return the number of pages in use as of the last call to numPages
+     *     or the last change made through this allocator, without checking
+     *     the length of the file
+     */
+    public synchronized int cachedNumPages() {
+        return pages(end);
+    }
+
+    private int pages(long length) {
+        long len = length - base;
+        return len <= 0 ? 0 : (int) (len / BufferPool.getPageSize());
+    }
+
+    /**
+     * Hands out n consecutive new pages at the end of the file, growing the
+     * file by an extent if needed. The new pages read as all zeros.
+     *
+     * @return the index of the first new page, counting from 0 at base
+     */
+    public synchronized int allocatePages(int n) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int first = numPages();
+        long newEnd = base + (long) (first + n) * pageSize;
+        if (newEnd > fileLength) {
+            int extentPages = Math.max(1, (extentSize + pageSize - 1) / pageSize);
+            long target = base + (long) (first + Math.max(n, extentPages)) * pageSize;
+            // write zeros rather than just setting the length, so that the
+            // extent is really allocated instead of leaving a sparse file
+            byte[] zeros = new byte[(int) Math.min(target - fileLength, DEFAULT_EXTENT_SIZE)];
+            for (long off = fileLength; off < target; off += zeros.length) {
+                int len = (int) Math.min(zeros.length, target - off);
+                channel.write(len == zeros.length ? zeros : new byte[len], off);
+            }
+            fileLength = target;
+        }
+        end = newEnd;
+        mark();
+        return first;
+    }
+
+    /**
+     * Records a write ending at offset end, so that pages written past the
+     * pages handed out so far count as in use.
+     *
+     * @throws IOException if the side file cannot be updated
+     */
+    public synchronized void written(long writeEnd) throws IOException {
+        if (writeEnd <= end)
+            return;
+        end = writeEnd;
+        if (writeEnd > fileLength)
+            fileLength = writeEnd;
+        mark();
+    }
+
+    /** Closes the side file; it is reopened if it is written again. */
+    public void close() throws IOException {
+        markChannel.close();
+    }
+}
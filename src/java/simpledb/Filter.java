@@ -21,6 +21,8 @@ public class Filter extends Operator {
 
     private Predicate pred;
     private OpIterator child;
+    /** Whether the child SeqScan applies pred itself. */
+    private boolean pushed;
 
     public Filter(Predicate p, OpIterator child) {
         // some code goes here
@@ -42,6 +44,9 @@ public class Filter extends Operator {
             TransactionAbortedException {
         // some code goes here
         super.open();
+        // let a scan evaluate the predicate on the pages' raw tuples
+        if (!pushed && child instanceof SeqScan)
+            pushed = ((SeqScan) child).pushPredicate(pred);
         child.open();
     }
 
@@ -70,13 +75,38 @@ public class Filter extends Operator {
         // some code goes here
         while(child.hasNext()){
             Tuple ret = child.next();
-            if(pred.filter(ret)){
+            if(pushed || pred.filter(ret)){
                 return ret;
             }
         }
         return null;
     }
 
+    /**
+     * Batch implementation: narrows the selection of each of the child's
+     * batches to the rows that pass the predicate, skipping batches where
+     * none do.
+     *
+     * @see TupleBatch#filter
+     */
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        checkOpen();
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            if (!pushed)
+                batch.filter(pred);
+            if (batch.numSelected() > 0)
+                return batch;
+        }
+        return null;
+    }
+
+    /** Filter returns its child's batches, so it reuses them if the child does. */
+    public boolean reusesBatches() {
+        return child.reusesBatches();
+    }
+
 /**
  * @return return the children DbIterators of this operator. If there is
  *         only one child, return an array of only one element.
@@ -94,6 +124,7 @@ public class Filter extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         child = children[0];
+        pushed = false;
     }
 
 }
@@ -0,0 +1,140 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile are known to be full, so
+ * that inserts can go straight to a page with room instead of reading every
+ * page of the file. The map is a bitmap with one bit per page, set when the
+ * page is full. It is kept in a small side file next to the heap file
+ * (the heap file's name plus {@link #SUFFIX}), which is only created once a
+ * page is first marked full.
+ * <p>
+ * The map is a hint: a page that is not marked full may still be full, e.g.
+ * if it was filled by a process that did not update the map, and pages past
+ * the end of the map are not known to be full. Callers check the page itself
+ * and mark it full when the hint was wrong.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    /** Appended to the heap file's name to get the name of the map file. */
+    public static final String SUFFIX = ".fsm";
+
+    private final BitSet full;
+    private final DbFileChannel channel;
+    /** No page before this one has free space. */
+    private int firstCandidate = 0;
+    /** The length of the map file. */
+    private int savedBytes = 0;
+    /** Bits have been cleared in memory but not on disk yet. */
+    private boolean unsaved = false;
+
+    /**
+     * Opens the free space map of a heap file, reading it from disk if it
+     * exists.
+     *
+     * @param heapFile the heap file the map describes
+     */
+    public FreeSpaceMap(File heapFile) {
+        File f = mapFile(heapFile);
+        // an empty heap file has just been created: any map is left over
+        if (heapFile.length() == 0)
+            f.delete();
+        this.channel = new DbFileChannel(f);
+        BitSet bits = new BitSet();
+        if (f.exists()) {
+            try {
+                byte[] data = new byte[(int) f.length()];
+                channel.read(data, 0);
+                bits = BitSet.valueOf(data);
+                savedBytes = data.length;
+            } catch (IOException e) {
+                e.printStackTrace(); // start over with an empty map
+            }
+        }
+        this.full = bits;
+    }
+
+    private static File mapFile(File heapFile) {
+        return new File(heapFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Removes the free space map of heapFile, if it has one. Used when the
+     * heap file is rewritten from scratch.
+     */
+    public static void delete(File heapFile) {
+        mapFile(heapFile).delete();
+    }
+
+    /**
+     * @param numPages the number of pages in the heap file
+     * @return the lowest numbered page that is not known to be full, or -1
+     *         if every page is full
+     */
+    public synchronized int findPage(int numPages) {
+        int page = full.nextClearBit(firstCandidate);
+        firstCandidate = page;
+        return page < numPages ? page : -1;
+    }
+
+    /**
+     * Records whether page has room for another tuple, and writes the change
+     * through to the map file.
+     *
+     * @throws IOException if the map file cannot be written
+     */
+    public synchronized void setFull(int page, boolean isFull) throws IOException {
+        if (full.get(page) == isFull)
+            return;
+        full.set(page, isFull);
+        if (!isFull && page < firstCandidate)
+            firstCandidate = page;
+
+        if (unsaved) {
+            save();
+            return;
+        }
+        // write back the byte holding this page's bit
+        int b = page / 8;
+        byte[] bytes = full.get(b * 8, b * 8 + 8).toByteArray();
+        channel.write(new byte[] { bytes.length == 0 ? 0 : bytes[0] }, b);
+        savedBytes = Math.max(savedBytes, b + 1);
+    }
+
+    /**
+     * Forgets that page is full, e.g. because the tuples that filled it have
+     * been rolled back. Unlike {@link #setFull}, this does not write to disk,
+     * so it cannot fail; the change is saved with the next write to the map,
+     * or when the map is closed.
+     */
+    public synchronized void clearFull(int page) {
+        if (!full.get(page))
+            return;
+        full.clear(page);
+        if (page < firstCandidate)
+            firstCandidate = page;
+        unsaved = true;
+    }
+
+    /** Writes the whole map to disk. */
+    private void save() throws IOException {
+        byte[] bytes = Arrays.copyOf(full.toByteArray(),
+                Math.max(savedBytes, (full.length() + 7) / 8));
+        if (bytes.length > 0)
+            channel.write(bytes, 0);
+        savedBytes = bytes.length;
+        unsaved = false;
+    }
+
+    /** Closes the map file; it is reopened if the map is written again. */
+    public synchronized void close() throws IOException {
+        if (unsaved)
+            save();
+        channel.close();
+    }
+}
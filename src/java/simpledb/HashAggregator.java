@@ -0,0 +1,570 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The grouping shared by IntegerAggregator, StringAggregator and
+ * CompositeAggregator. Each group's running aggregates are a state of type
+ * S, kept in a HashMap by group value: an Integer or a String when grouping
+ * on one field, and a List of them when grouping on several.
+ * <p>
+ * An aggregator keeps at most maxGroups groups in memory. Once it is full,
+ * the rows of any other group are hash partitioned on the group value into
+ * NUM_PARTITIONS spill files, so all of a group's rows are either
+ * aggregated in memory or spilled. The iterator returns the groups in
+ * memory, then aggregates each partition in turn with a new aggregator,
+ * which partitions again with a different hash function if the partition
+ * still has too many groups. Past MAX_DEPTH levels, a partition is sorted
+ * on the group fields and aggregated one group at a time.
+ * <p>
+ * Once an aggregator has spilled, no rows can be merged into it after its
+ * iterator has been created, and closing the iterator deletes the spill
+ * files.
+ * <p>
+ * When the input is already grouped, iterator(child) aggregates it one
+ * group at a time instead, without the hash table.
+ */
+abstract class HashAggregator<S> implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of partitions spilled rows are split into. */
+    static final int NUM_PARTITIONS = 16;
+    /** The number of times partitions are split before falling back to sorting. */
+    static final int MAX_DEPTH = 3;
+
+    protected final int[] gbfields;
+    protected final Type[] gbfieldtypes;
+    private int maxGroups;
+    private int depth;
+
+    private HashMap<Object, S> groups = new HashMap<Object, S>();
+    /** The state of an aggregate without grouping. */
+    private S total;
+    /** The spilled rows of each partition, or null until a row is spilled. */
+    private SpillFile[] partitions;
+    /**
+     * For each partition, the states of groups merged from partial
+     * aggregates after this aggregator spilled. Their groups may have
+     * spilled rows too, so they are combined with the partition's.
+     */
+    private HashAggregator<S>[] seeds;
+
+    /**
+     * @param gbfields the group-by fields, none if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     */
+    HashAggregator(int[] gbfields, Type[] gbfieldtypes, int maxGroups) {
+        this.gbfields = gbfields;
+        this.gbfieldtypes = gbfieldtypes;
+        this.maxGroups = Math.max(1, maxGroups);
+    }
+
+    /** @return the state of a group without rows */
+    abstract S newState();
+
+    /** Adds the aggregate field(s) of t to state. */
+    abstract void add(S state, Tuple t);
+
+    /** Adds the aggregate field(s) of row of batch to state. */
+    abstract void add(S state, TupleBatch batch, int row);
+
+    /** Adds the rows aggregated in other to state. */
+    abstract void combine(S state, S other);
+
+    /** @return the aggregate fields of the results, after the group field */
+    abstract List<Type> resultTypes();
+
+    /** Sets the aggregate fields of t, from field i on, to the result of state. */
+    abstract void setResult(Tuple t, int i, S state);
+
+    /** @return a new, empty aggregator with the same parameters */
+    abstract HashAggregator<S> create();
+
+    /** @return a new, empty aggregator for the partitions of the next level */
+    private HashAggregator<S> createChild() {
+        HashAggregator<S> child = create();
+        child.maxGroups = maxGroups;
+        child.depth = depth + 1;
+        return child;
+    }
+
+    /** @return the group-by fields of an aggregate grouped on gbfield */
+    static int[] groupFields(int gbfield) {
+        return gbfield == NO_GROUPING ? new int[0] : new int[] { gbfield };
+    }
+
+    /** @return the group-by field types of an aggregate grouped on gbfield */
+    static Type[] groupFieldTypes(int gbfield, Type gbfieldtype) {
+        return gbfield == NO_GROUPING ? new Type[0] : new Type[] { gbfieldtype };
+    }
+
+    /** @return the group value of t, or null without grouping */
+    private Object key(Tuple t) {
+        if (gbfields.length == 0)
+            return null;
+        if (gbfields.length == 1)
+            return value(t, 0);
+        Object[] key = new Object[gbfields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = value(t, i);
+        return Arrays.asList(key);
+    }
+
+    private Object value(Tuple t, int i) {
+        if (gbfieldtypes[i] == Type.INT_TYPE)
+            return t.getInt(gbfields[i]);
+        return t.getString(gbfields[i]);
+    }
+
+    /** @return the group value of row of batch, or null without grouping */
+    private Object key(TupleBatch batch, int row) {
+        if (gbfields.length == 0)
+            return null;
+        if (gbfields.length == 1)
+            return batch.getValue(gbfields[0], row);
+        Object[] key = new Object[gbfields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = batch.getValue(gbfields[i], row);
+        return Arrays.asList(key);
+    }
+
+    /** @return the partition of key at this aggregator's depth */
+    private int partition(Object key) {
+        int h = key.hashCode();
+        h ^= depth * 0x5bd1e995;
+        h *= 0x9e3779b9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % NUM_PARTITIONS;
+    }
+
+    /**
+     * @return the state of group key (null without grouping), created if
+     *         there is room for it, or null if the group's rows are spilled
+     */
+    private S state(Object key) {
+        if (key == null) {
+            if (total == null)
+                total = newState();
+            return total;
+        }
+        S state = groups.get(key);
+        if (state == null && groups.size() < maxGroups) {
+            state = newState();
+            groups.put(key, state);
+        }
+        return state;
+    }
+
+    /** @return the spill file of key's partition, for rows of schema td */
+    private SpillFile spill(Object key, TupleDesc td) {
+        int p = partition(key);
+        try {
+            if (partitions == null)
+                partitions = new SpillFile[NUM_PARTITIONS];
+            if (partitions[p] == null)
+                partitions[p] = new SpillFile(td);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+        return partitions[p];
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing an aggregate field and a group-by field
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        Object key = key(tup);
+        S state = state(key);
+        if (state != null) {
+            add(state, tup);
+            return;
+        }
+        try {
+            spill(key, tup.getTupleDesc()).add(tup);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merge the selected rows of batch, reading the fields straight from
+     * its column vectors.
+     */
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.numSelected();
+        try {
+            for (int i = 0; i < n; i++) {
+                int row = batch.getSelected(i);
+                Object key = key(batch, row);
+                S state = state(key);
+                if (state != null)
+                    add(state, batch, row);
+                else
+                    spill(key, batch.getTupleDesc()).add(batch, row);
+            }
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Adds state to that of group key, or makes it the group's state. */
+    private void put(Object key, S state) {
+        S mine = groups.get(key);
+        if (mine != null)
+            combine(mine, state);
+        else
+            groups.put(key, state);
+    }
+
+    /**
+     * Combines the states of partial's groups with those of the same groups
+     * here, and merges the rows partial spilled as if they were merged
+     * into this aggregator.
+     */
+    @SuppressWarnings("unchecked")
+    public void merge(Aggregator partial) throws DbException, TransactionAbortedException {
+        HashAggregator<S> other = (HashAggregator<S>) partial;
+        if (other.total != null)
+            combine(state(null), other.total);
+        for (Map.Entry<Object, S> e : other.groups.entrySet()) {
+            if (partitions == null || groups.containsKey(e.getKey())) {
+                // none of the group's rows are spilled
+                put(e.getKey(), e.getValue());
+                continue;
+            }
+            if (seeds == null)
+                seeds = new HashAggregator[NUM_PARTITIONS];
+            int p = partition(e.getKey());
+            if (seeds[p] == null)
+                seeds[p] = createChild();
+            seeds[p].put(e.getKey(), e.getValue());
+        }
+        if (other.partitions != null) {
+            for (SpillFile f : other.partitions) {
+                if (f == null)
+                    continue;
+                OpIterator rows = f.iterator();
+                rows.open();
+                for (TupleBatch b = rows.nextBatch(); b != null; b = rows.nextBatch())
+                    mergeBatch(b);
+                rows.close();
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the group value, if grouping,
+     *         followed by the aggregate fields
+     */
+    public OpIterator iterator() {
+        return new Results();
+    }
+
+    public OpIterator iterator(OpIterator child) {
+        return new StreamedGroups(child);
+    }
+
+    private TupleDesc resultTupleDesc() {
+        ArrayList<Type> types = new ArrayList<Type>();
+        types.addAll(Arrays.asList(gbfieldtypes));
+        types.addAll(resultTypes());
+        return new TupleDesc(types.toArray(new Type[types.size()]));
+    }
+
+    private Tuple result(TupleDesc td, Object key, S state) {
+        Tuple t = new Tuple(td);
+        List<?> values = gbfields.length == 1 ? Collections.singletonList(key) : (List<?>) key;
+        int i = 0;
+        if (values != null) {
+            for (Object v : values) {
+                if (v instanceof Integer)
+                    t.setField(i++, new IntField((Integer) v));
+                else
+                    t.setField(i++, new StringField((String) v, ((String) v).length()));
+            }
+        }
+        setResult(t, i, state);
+        return t;
+    }
+
+    /**
+     * The groups in memory, then those of each partition, aggregated when
+     * the iterator reaches it.
+     */
+    private class Results implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td = resultTupleDesc();
+        private OpIterator current;
+        private int nextPartition;
+
+        public void open() throws DbException, TransactionAbortedException {
+            if (current != null)
+                current.close();
+            ArrayList<Tuple> ret = new ArrayList<Tuple>();
+            if (gbfields.length == 0) {
+                if (total != null)
+                    ret.add(result(td, null, total));
+            } else {
+                for (Map.Entry<Object, S> e : groups.entrySet())
+                    ret.add(result(td, e.getKey(), e.getValue()));
+            }
+            current = new TupleIterator(td, ret);
+            current.open();
+            nextPartition = 0;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (!current.hasNext()) {
+                if (partitions == null || nextPartition >= NUM_PARTITIONS)
+                    return false;
+                current.close();
+                current = partitionResults(nextPartition++);
+                current.open();
+            }
+            return true;
+        }
+
+        /** @return the results of the groups of partition p */
+        private OpIterator partitionResults(int p) throws DbException, TransactionAbortedException {
+            SpillFile f = partitions[p];
+            HashAggregator<S> seed = seeds == null ? null : seeds[p];
+            if (depth >= MAX_DEPTH)
+                return new SortedGroups(f, seed);
+            HashAggregator<S> child = createChild();
+            if (f != null) {
+                OpIterator rows = f.iterator();
+                rows.open();
+                for (TupleBatch b = rows.nextBatch(); b != null; b = rows.nextBatch())
+                    child.mergeBatch(b);
+                rows.close();
+            }
+            if (seed != null)
+                child.merge(seed);
+            return child.iterator();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (current != null)
+                current.close();
+            current = null;
+            if (partitions != null) {
+                for (SpillFile f : partitions) {
+                    if (f != null)
+                        f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The groups of a partition that could not be split by hashing: its rows
+     * sorted on the group field, aggregated a group at a time.
+     */
+    private class SortedGroups implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final SpillFile rows;
+        private final HashAggregator<S> seed;
+        private OrderBy sorted;
+        /** The first row of the next group, or null. */
+        private Tuple ahead;
+        private Tuple next;
+        /** The groups of the seed that have been returned. */
+        private HashSet<Object> returned;
+        private Iterator<Map.Entry<Object, S>> seedGroups;
+
+        SortedGroups(SpillFile rows, HashAggregator<S> seed) {
+            this.rows = rows;
+            this.seed = seed;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            close();
+            returned = new HashSet<Object>();
+            if (rows != null) {
+                boolean[] asc = new boolean[gbfields.length];
+                Arrays.fill(asc, true);
+                sorted = new OrderBy(gbfields, asc, OrderBy.NO_LIMIT, rows.iterator());
+                sorted.open();
+                ahead = sorted.hasNext() ? sorted.next() : null;
+            }
+        }
+
+        /** @return the result of the next group, or null */
+        private Tuple readNext() throws DbException, TransactionAbortedException {
+            if (ahead != null) {
+                HashAggregator<S> group = create();
+                group.maxGroups = Integer.MAX_VALUE;
+                Object key = key(ahead);
+                do {
+                    group.add(group.state(key), ahead);
+                    ahead = sorted.hasNext() ? sorted.next() : null;
+                } while (ahead != null && key(ahead).equals(key));
+                if (seed != null && seed.groups.containsKey(key)) {
+                    group.combine(group.state(key), seed.groups.get(key));
+                    returned.add(key);
+                }
+                return result(resultTupleDesc(), key, group.state(key));
+            }
+            // then the seeded groups without spilled rows
+            if (seed == null)
+                return null;
+            if (seedGroups == null)
+                seedGroups = seed.groups.entrySet().iterator();
+            while (seedGroups.hasNext()) {
+                Map.Entry<Object, S> e = seedGroups.next();
+                if (!returned.contains(e.getKey()))
+                    return result(resultTupleDesc(), e.getKey(), e.getValue());
+            }
+            return null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (next == null)
+                next = readNext();
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return resultTupleDesc();
+        }
+
+        public void close() {
+            if (sorted != null)
+                sorted.close();
+            sorted = null;
+            ahead = null;
+            next = null;
+            seedGroups = null;
+        }
+    }
+
+    /**
+     * The groups of an input that returns each group's rows together,
+     * aggregated as they are read: a group ends at the first row with
+     * another group value.
+     */
+    private class StreamedGroups implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final OpIterator child;
+        private final TupleDesc td = resultTupleDesc();
+        /** The batch being read, and the position of its next row. */
+        private TupleBatch batch;
+        private int pos;
+        private boolean done;
+        /** The group being aggregated, or null between groups. */
+        private Object key;
+        private S state;
+        private Tuple next;
+
+        StreamedGroups(OpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            batch = null;
+            pos = 0;
+            done = false;
+            key = null;
+            state = null;
+            next = null;
+        }
+
+        /** @return the result of the next group, or null */
+        private Tuple readNext() throws DbException, TransactionAbortedException {
+            while (!done) {
+                if (batch == null || pos >= batch.numSelected()) {
+                    batch = child.nextBatch();
+                    pos = 0;
+                    if (batch == null)
+                        done = true;
+                    continue;
+                }
+                int row = batch.getSelected(pos);
+                Object k = key(batch, row);
+                if (state != null && !Objects.equals(k, key)) {
+                    // the row starts the next group
+                    Tuple t = result(td, key, state);
+                    state = null;
+                    return t;
+                }
+                if (state == null) {
+                    key = k;
+                    state = newState();
+                }
+                add(state, batch, row);
+                pos++;
+            }
+            if (state == null)
+                return null;
+            Tuple t = result(td, key, state);
+            state = null;
+            return t;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (next == null)
+                next = readNext();
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            batch = null;
+            state = null;
+            next = null;
+        }
+    }
+}
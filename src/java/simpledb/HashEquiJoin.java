@@ -4,6 +4,21 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. The build side (child1) is hashed into
+ * NUM_PARTITIONS partitions held in memory. Once the build rows in memory
+ * fill the memory budget ({@link #getMemoryPages} pages' worth of rows of
+ * child1's width), the largest partition is written to a spill file, and so are
+ * all of its later build rows and the probe rows (child2) that hash to it.
+ * Partitions that stay in memory are joined while child2 is read once;
+ * each spilled pair of partitions is then joined by a HashEquiJoin of
+ * its own, which partitions again with a different hash function if it is
+ * still too large. Past MAX_DEPTH levels (e.g. for one very frequent key)
+ * the build side is joined a memory budget's worth of rows at a time,
+ * rescanning the probe side for each block.
+ * <p>
+ * Joins on INT_TYPE fields keep each partition's keys in an IntHashTable,
+ * with a bloom filter in front of it, so no key is boxed.
  */
 public class HashEquiJoin extends Operator {
 
@@ -11,13 +26,19 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    private final int depth;
+
+    /** Default memory budget for the build rows, in BufferPool pages. */
+    public final static int DEFAULT_MEMORY_PAGES = 64;
+    /** The number of partitions each input is split into. */
+    public final static int NUM_PARTITIONS = 16;
+    /** The number of times partitions are split before falling back to blocks. */
+    final static int MAX_DEPTH = 3;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -26,12 +47,25 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 0);
+    }
+
+    /** Creates the join of a pair of spilled partitions of a parent join. */
+    private HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int depth) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.depth = depth;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * @return true if a HashEquiJoin can evaluate join predicates with op
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return pred;
     }
@@ -39,7 +73,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,33 +83,325 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
-
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+
+    private static int memoryPages = DEFAULT_MEMORY_PAGES;
+
+    /**
+     * @return the memory budget for the build rows of a join, in BufferPool
+     *         pages
+     */
+    public static int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * Sets the memory budget, in BufferPool pages, for the build rows of
+     * HashEquiJoins opened from now on.
+     */
+    public static void setMemoryPages(int pages) {
+        memoryPages = Math.max(1, pages);
+    }
+
+    /**
+     * @return the number of build rows with the given TupleDesc that fit in
+     *         the memory budget
+     */
+    static int maxBuildRows(TupleDesc td) {
+        long bytes = (long) memoryPages * BufferPool.getPageSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / td.getSize()));
+    }
+
+    private static boolean useBloomFilter = true;
+
+    /**
+     * @return whether joins on INT_TYPE fields check a bloom filter of each
+     *         partition's keys before probing its hash table
+     */
+    public static boolean getUseBloomFilter() {
+        return useBloomFilter;
+    }
+
+    /**
+     * Turns the bloom filters of joins on INT_TYPE fields on or off. They
+     * pay off when most probe rows have no match.
+     */
+    public static void setUseBloomFilter(boolean use) {
+        useBloomFilter = use;
+    }
+
+    /**
+     * The build rows of one partition, in memory or spilled. Rows with equal
+     * keys are chained through next, so no per-key lists are allocated.
+     * INT_TYPE keys are hashed in an IntHashTable, other keys in a HashMap.
+     */
+    private static class Partition {
+        TupleBatch rows;
+        IntHashTable ints;
+        HashMap<Object, Integer> heads;
+        IntBloomFilter bloom;
+        /** next[r] is the next row with the same key as row r, or -1. */
+        int[] next;
+        SpillFile buildSpill, probeSpill;
+
+        Partition(TupleDesc td, boolean intKeys) {
+            rows = new TupleBatch(td, 256);
+            if (intKeys)
+                ints = new IntHashTable(256);
+            else
+                heads = new HashMap<Object, Integer>();
+            next = new int[256];
+        }
+
+        void add(TupleBatch batch, int row, int field) {
+            int r = rows.addRow();
+            rows.copyFields(r, 0, batch, row);
+            if (r >= next.length)
+                next = Arrays.copyOf(next, next.length * 2);
+            if (ints != null) {
+                next[r] = ints.put(batch.getInt(field, row), r);
+            } else {
+                Integer head = heads.put(batch.getValue(field, row), r);
+                next[r] = head == null ? -1 : head;
+            }
+        }
+
+        /** Builds the bloom filter, once all build rows have been added. */
+        void finish(int field) {
+            bloom = null;
+            if (ints == null || !useBloomFilter || rows.numRows() == 0)
+                return;
+            bloom = new IntBloomFilter(ints.size(), 8);
+            int[] keys = rows.getIntColumn(field);
+            for (int r = 0; r < rows.numRows(); r++)
+                bloom.add(keys[r]);
+        }
+
+        /**
+         * @return the last build row whose key equals field of row in
+         *         batch, or -1 if there is none
+         */
+        int find(TupleBatch batch, int row, int field) {
+            if (ints != null) {
+                int key = batch.getInt(field, row);
+                if (bloom != null && !bloom.mightContain(key))
+                    return -1;
+                return ints.get(key);
+            }
+            Integer head = heads.get(batch.getValue(field, row));
+            return head == null ? -1 : head;
+        }
+
+        void clear() {
+            rows.clear();
+            if (ints != null)
+                ints.clear();
+            else
+                heads.clear();
+            bloom = null;
+        }
+
+        boolean isSpilled() {
+            return buildSpill != null;
+        }
+
+        void delete() {
+            if (buildSpill != null)
+                buildSpill.delete();
+            if (probeSpill != null)
+                probeSpill.delete();
+        }
+    }
+
+    // the state of the join
+    transient private Partition[] parts;
+    transient private boolean intKeys;
+    transient private int inMemoryRows;
+    /** The number of build rows that fit in the memory budget. */
+    transient private int maxRows;
+    transient private TupleBatch buildBatch, probe, out;
+    transient private int buildPos, probePos, probeRow, match;
+    transient private Partition matchPart;
+    transient private boolean buildDone, probeDone;
+    /** The join of a pair of spilled partitions being read. */
+    transient private HashEquiJoin sub;
+    transient private int nextSpilled;
+    /** The output batch being handed out by fetchNext. */
+    transient private TupleBatch pending;
+    transient private int pendingPos;
+
+    /** @return the partition of the key in field of row at this join's depth */
+    private int partition(TupleBatch batch, int field, int row) {
+        int h = intKeys ? batch.getInt(field, row) : batch.getValue(field, row).hashCode();
+        h ^= depth * 0x5bd1e995;
+        h *= 0x9e3779b9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % NUM_PARTITIONS;
+    }
+
+    /**
+     * Reads child1 into the partitions. Returns once child1 is exhausted,
+     * or, past MAX_DEPTH, once maxRows rows are in memory.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        for (Partition part : parts) {
+            if (!part.isSpilled())
+                part.clear();
+        }
+        inMemoryRows = 0;
+        int field = pred.getField1();
+        while (true) {
+            if (buildBatch == null || buildPos >= buildBatch.numSelected()) {
+                buildBatch = child1.nextBatch();
+                buildPos = 0;
+                if (buildBatch == null) {
+                    buildDone = true;
+                    break;
+                }
+            }
+            int row = buildBatch.getSelected(buildPos++);
+            Partition part = parts[partition(buildBatch, field, row)];
+            if (part.isSpilled()) {
+                part.buildSpill.add(buildBatch, row);
+                continue;
+            }
+            part.add(buildBatch, row, field);
+            if (++inMemoryRows >= maxRows) {
+                if (depth >= MAX_DEPTH)
+                    break;
+                spillLargest();
+            }
+        }
+        for (Partition part : parts) {
+            if (!part.isSpilled())
+                part.finish(field);
+        }
+    }
+
+    /** Moves the largest partition in memory to a spill file. */
+    private void spillLargest() throws DbException {
+        Partition largest = null;
+        for (Partition part : parts) {
+            if (!part.isSpilled() && (largest == null
+                    || part.rows.numRows() > largest.rows.numRows()))
+                largest = part;
+        }
+        largest.buildSpill = new SpillFile(child1.getTupleDesc());
+        largest.probeSpill = new SpillFile(child2.getTupleDesc());
+        for (int r = 0; r < largest.rows.numRows(); r++)
+            largest.buildSpill.add(largest.rows, r);
+        inMemoryRows -= largest.rows.numRows();
+        largest.rows = null;
+        largest.ints = null;
+        largest.heads = null;
+        largest.next = null;
+    }
+
+    /**
+     * Fills out with the joined rows of the partitions in memory, then
+     * returns the batches of the joins of the spilled partitions.
+     *
+     * @return the next batch of output rows, or null if there are no more
+     */
+    private TupleBatch fillBatch() throws DbException, TransactionAbortedException {
+        if (parts == null) {
+            TupleDesc td1 = child1.getTupleDesc();
+            intKeys = td1.getFieldType(pred.getField1()) == Type.INT_TYPE;
+            maxRows = maxBuildRows(td1);
+            parts = new Partition[NUM_PARTITIONS];
+            for (int i = 0; i < parts.length; i++)
+                parts[i] = new Partition(td1, intKeys);
+            out = new TupleBatch(comboTD);
+            match = -1;
+            build();
+        }
+        out.clear();
+        int td1n = child1.getTupleDesc().numFields();
+        int field2 = pred.getField2();
+        while (!out.isFull()) {
+            if (match != -1) {
+                int row = out.addRow();
+                out.copyFields(row, 0, matchPart.rows, match);
+                out.copyFields(row, td1n, probe, probeRow);
+                match = matchPart.next[match];
+            } else if (probe != null && probePos < probe.numSelected()) {
+                probeRow = probe.getSelected(probePos++);
+                Partition part = parts[partition(probe, field2, probeRow)];
+                if (part.isSpilled()) {
+                    part.probeSpill.add(probe, probeRow);
+                } else {
+                    match = part.find(probe, probeRow, field2);
+                    matchPart = part;
+                }
+            } else if (!probeDone) {
+                probe = child2.nextBatch();
+                probePos = 0;
+                probeDone = probe == null;
+            } else if (!buildDone) {
+                // past MAX_DEPTH: probe again with the next block of child1
+                child2.rewind();
+                build();
+                probeDone = false;
+            } else {
+                break;
+            }
+        }
+        if (out.numRows() > 0)
+            return out;
+        return nextSpilledBatch();
+    }
+
+    /**
+     * @return the next batch of the joins of the spilled partitions, or null
+     *         once all of them have been joined
+     */
+    private TupleBatch nextSpilledBatch() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (sub != null) {
+                TupleBatch batch = sub.nextBatch();
+                if (batch != null)
+                    return batch;
+                sub.close();
+                sub = null;
+                parts[nextSpilled - 1].delete();
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            if (nextSpilled == parts.length)
+                return null;
+            Partition part = parts[nextSpilled++];
+            if (!part.isSpilled())
+                continue;
+            if (part.probeSpill.size() == 0) {
+                part.delete();
+                continue;
+            }
+            sub = new HashEquiJoin(pred, part.buildSpill.iterator(),
+                    part.probeSpill.iterator(), depth + 1);
+            sub.open();
         }
-        return cnt > 0;
+    }
 
+    /** Drops all state and spill files, so that the join starts over. */
+    private void reset() {
+        if (sub != null)
+            sub.close();
+        if (parts != null)
+            for (Partition part : parts)
+                part.delete();
+        sub = null;
+        parts = null;
+        buildBatch = null;
+        probe = null;
+        out = null;
+        pending = null;
+        buildDone = false;
+        probeDone = false;
+        nextSpilled = 0;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        reset();
         super.open();
     }
 
@@ -83,18 +409,23 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        reset();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /**
+     * Batch implementation: joined rows are copied column by column into an
+     * output batch, which is reused by every call.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        checkOpen();
+        return fillBatch();
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -110,53 +441,18 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+        if (pending == null || pendingPos >= pending.numSelected()) {
+            pending = fillBatch();
+            pendingPos = 0;
+            if (pending == null)
+                return null;
         }
-
-        return null;
+        return pending.getTuple(pending.getSelected(pendingPos++));
     }
 
     @Override
@@ -169,5 +465,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
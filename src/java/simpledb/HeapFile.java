@@ -18,6 +18,9 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc td;
+    final DbFileChannel channel;
+    private final FreeSpaceMap freeSpace;
+    private final ExtentAllocator extents;
     int numPages;
 
     /**
@@ -30,6 +33,9 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         this.file = f;
         this.td = td;
+        this.channel = new DbFileChannel(f);
+        this.freeSpace = new FreeSpaceMap(f);
+        this.extents = new ExtentAllocator(f, channel, 0);
         this.numPages = (int) (file.length()/BufferPool.getPageSize());
 
     }
@@ -69,21 +75,16 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
 //        System.out.println("PID: " + pid.getPageNumber());
 //        System.out.println("PID - numpages: " + numPages());
-        if(pid.getPageNumber() < 0 || pid.getPageNumber() >= this.numPages()){
+        if(pid.getPageNumber() < 0 || !hasPage(pid.getPageNumber())){
             throw new IllegalArgumentException("Page number does not exist in this file");
         }
 
-        int begin = pid.getPageNumber() * BufferPool.getPageSize();
+        long begin = (long) pid.getPageNumber() * BufferPool.getPageSize();
         byte[] pageData = new byte[BufferPool.getPageSize()];
 
         //Try reading in the heap page information.
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "r"); //Open file for reading only
-            raf.seek(begin);
-            raf.readFully(pageData); //Blocks and reads exactly pageData of bytes;
-            raf.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            channel.read(pageData, begin); //Blocks and reads exactly pageData of bytes;
         } catch (IOException e){
             e.printStackTrace();
         }
@@ -104,15 +105,9 @@ public class HeapFile implements DbFile {
 
         try {
             PageId pid= page.getId();
-            HeapPageId hpid= (HeapPageId)pid;
-
-            RandomAccessFile rAf=new RandomAccessFile(file,"rw");
-            int offset = pid.getPageNumber()*BufferPool.getPageSize();
-            byte[] b=new byte[BufferPool.getPageSize()];
-            b=page.getPageData();
-            rAf.seek(offset);
-            rAf.write(b, 0, BufferPool.getPageSize());
-            rAf.close();
+            long offset = (long) pid.getPageNumber()*BufferPool.getPageSize();
+            channel.write(page.getPageData(), offset);
+            extents.written(offset + BufferPool.getPageSize());
         }catch (IOException e){
             e.printStackTrace();
         }
@@ -122,54 +117,79 @@ public class HeapFile implements DbFile {
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
-     * file.length() = length in bytes.
+     * Closes the file handle held open by this HeapFile. It is reopened if
+     * the file is accessed again.
+     */
+    public void close() throws IOException {
+        channel.close();
+        freeSpace.close();
+        extents.close();
+    }
+
+    /**
+     * Returns the number of pages in this HeapFile. Pages that have been
+     * preallocated at the end of the file but not handed out yet are not
+     * counted.
+     *
+     * @see ExtentAllocator
      */
     public int numPages() {
+        return extents.numPages();
+    }
 
-        return (int) (file.length()/BufferPool.getPageSize());
+    /**
+     * Like {@link #numPages}, but without asking the file system for the
+     * file's length, which is only noticed to have changed behind the
+     * HeapFile's back by the next call to numPages. For callers that ask once
+     * per page.
+     */
+    int cachedNumPages() {
+        return extents.cachedNumPages();
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * @return whether pageNo is in the file; the file's length is only
+     *     checked again if it is past the pages known so far
+     */
+    boolean hasPage(int pageNo) {
+        return pageNo < cachedNumPages() || pageNo < numPages();
+    }
+
+    /**
+     * Adds t to the first page that the free space map does not know to be
+     * full, appending a new page if there is none. Only pages the map
+     * points to are read, and a page that turns out to be full is marked as
+     * such, so a bulk load does not rescan the full pages at the start of
+     * the file for every tuple.
+     *
+     * @see FreeSpaceMap
+     */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        HeapPage pageCur;
-//        HeapPage pageCurWrite;
         ArrayList<Page> retPages = new ArrayList<Page>();
-
-        HeapPageId pid;
         int tableId = getId();
-        //for each page in teh file
-
-        for (int i = 0; i < numPages(); i++){
-
-            pid = new HeapPageId(tableId,i); //get the  pageid
-            pageCur = (HeapPage) Database.getBufferPool().getPage(tid,pid, Permissions.READ_WRITE); //getpage for reading
-
-            System.out.println("Empty slots available: " + pageCur.getNumEmptySlots() + " Page Number: " + pageCur.getId().getPageNumber());
 
+        int pageNo;
+        while ((pageNo = freeSpace.findPage(numPages())) != -1) {
+            HeapPageId pid = new HeapPageId(tableId, pageNo);
+            HeapPage pageCur = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
             if (pageCur.getNumEmptySlots() > 0){ //check is the  page has an empty slots
-                System.out.println("Empty page found!");
-//                pageCurWrite = (HeapPage) Database.getBufferPool().getPage(tid,pid, Permissions.READ_WRITE); //write to page
                 pageCur.insertTuple(t);
+                if (pageCur.getNumEmptySlots() == 0)
+                    freeSpace.setFull(pageNo, true);
                 retPages.add(pageCur); //add the affected page to list
                 return retPages;
-
             }
-
+            freeSpace.setFull(pageNo, true);
         }
 
-        System.out.println("Creating new page: " + numPages());
-//        numPages++;
-
-        HeapPageId newPid = new HeapPageId(tableId, numPages());
-        HeapPage createNew = new HeapPage(newPid, HeapPage.createEmptyPageData());
-
-
-        writePage(createNew);
+        // new pages come out of the preallocated extent, already zeroed,
+        // i.e. empty
+        HeapPageId newPid = new HeapPageId(tableId, extents.allocatePages(1));
         HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, newPid, Permissions.READ_WRITE);
         newPage.insertTuple(t);
-        System.out.println("llEmpty slots available: " + newPage.getNumEmptySlots() + " Page Number: " + createNew.getId().getPageNumber());
+        if (newPage.getNumEmptySlots() == 0)
+            freeSpace.setFull(newPid.getPageNumber(), true);
 
         retPages.add(newPage);
 
@@ -177,9 +197,45 @@ public class HeapFile implements DbFile {
 
     }
 
+    /**
+     * Adds the tuples page by page: each page the free space map points to
+     * is pinned once and filled before moving on, and when the file runs out
+     * of room new pages are taken from the file's current extent.
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> retPages = new ArrayList<Page>();
+        int tableId = getId();
+
+        while (tuples.hasNext()) {
+            int pageNo = freeSpace.findPage(numPages());
+            if (pageNo == -1)
+                pageNo = extents.allocatePages(1);
+
+            HeapPageId pid = new HeapPageId(tableId, pageNo);
+            BufferPool.PageHandle handle = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_WRITE);
+            try {
+                HeapPage page = (HeapPage) handle.getPage();
+                int free = page.getNumEmptySlots();
+                if (free > 0) {
+                    for (; free > 0 && tuples.hasNext(); free--)
+                        page.insertTuple(tuples.next());
+                    // mark before unpinning, so an eviction writes it back
+                    page.markDirty(true, tid);
+                    retPages.add(page);
+                }
+                if (free == 0)
+                    freeSpace.setFull(pageNo, true);
+            } finally {
+                handle.close();
+            }
+        }
+        return retPages;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
         ArrayList<Page> pages = new ArrayList<Page>();
 
         try {
@@ -187,6 +243,7 @@ public class HeapFile implements DbFile {
             HeapPageId pid = (HeapPageId) rid.getPageId();
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
             page.deleteTuple(t);
+            freeSpace.setFull(pid.getPageNumber(), false);
             pages.add(page);
 
 
@@ -198,12 +255,30 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
+    /**
+     * The cached copy of the page may have been filled by tuples that are
+     * now rolled back, so the free space map stops treating it as full; the
+     * next insert that lands on it checks it again.
+     */
+    public void pageDiscarded(PageId pid) {
+        freeSpace.clearFull(pid.getPageNumber());
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-//        HeapFileIterator it = new HeapFileIterator(this, tid);
-        return new HeapFileIterator(tid, file, this.getId()); // look at the class
-//        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid); // look at the class
 
     }
 
+    /**
+     * Returns an iterator over the tuples of this file that satisfy p. The
+     * predicate is tested against the serialized tuples on each page, so
+     * tuples that fail it are never decoded.
+     *
+     * @see HeapPage#iterator(Predicate)
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate p) {
+        return new HeapFileIterator(this, tid, p);
+    }
+
 }
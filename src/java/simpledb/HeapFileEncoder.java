@@ -106,6 +106,10 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    // the file is rewritten, so its old free space map and extent mark no
+    // longer apply
+    FreeSpaceMap.delete(outFile);
+    ExtentAllocator.delete(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -1,79 +1,132 @@
 package simpledb;
 
-import java.io.*;
 import java.util.*;
 
+/**
+ * Iterates over the tuples of a HeapFile page by page. The page currently
+ * being read is pinned in the BufferPool, so it cannot be evicted while the
+ * iterator is positioned on it. An iterator may be limited to a range of
+ * pages, e.g. one of the ranges a ParallelHeapFileIterator reads.
+ */
 public class HeapFileIterator implements DbFileIterator {
     private TransactionId tid;
-    private File f;
     private HeapFile heapf;
     private int pageNumCursor;
-    private Iterator<Tuple> iterator;
-    private HeapPage page;
-    private int TableId;
+    private HeapPage.SlotIterator iterator;
+    private BufferPool.PageHandle handle;
+    private ReadAhead readAhead;
+    private final Predicate predicate;
+    private final int firstPage;
+    private final int endPage;
 
 
-    public HeapFileIterator(TransactionId tid, File file, int tableid){
+    public HeapFileIterator(HeapFile heapf, TransactionId tid){
+        this(heapf, tid, null);
+    }
+
+    /**
+     * Creates an iterator that only returns the tuples satisfying predicate.
+     * The predicate is evaluated on each page's serialized tuples, so tuples
+     * that fail it are never decoded.
+     *
+     * @param predicate the predicate to apply, or null for all tuples
+     * @see HeapPage#iterator(Predicate)
+     */
+    public HeapFileIterator(HeapFile heapf, TransactionId tid, Predicate predicate){
+        this(heapf, tid, predicate, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates an iterator over the pages firstPage (inclusive) to endPage
+     * (exclusive) of the file.
+     *
+     * @param predicate the predicate to apply, or null for all tuples
+     */
+    public HeapFileIterator(HeapFile heapf, TransactionId tid, Predicate predicate,
+            int firstPage, int endPage){
         //initialize private variables
-        tid = tid;
-        f = file;
-        TableId = tableid;
-        heapf = new HeapFile(f, Database.getCatalog().getTupleDesc(TableId)); //gets thw Heap file with the passed in table id
+        this.tid = tid;
+        this.heapf = heapf;
+        this.predicate = predicate;
+        this.firstPage = firstPage;
+        this.endPage = endPage;
+    }
+
+    /** @return the page after the last one to read */
+    private int lastPage() {
+        return Math.min(endPage, heapf.cachedNumPages());
     }
     //close iterator
     public void close(){
+        unpinPage();
         iterator = null;
-        page = null;
-        heapf = null;
-
-
     }
     //opens the iterator
     public void open()   throws DbException, TransactionAbortedException{
 
-        pageNumCursor = 0; //first page of the file
-        //getting the first page from teh file
-        page = (HeapPage)Database.getBufferPool().getPage(tid, (PageId) new HeapPageId(heapf.getId(), pageNumCursor), Permissions.READ_ONLY);
-//
-        iterator = page.iterator();
+        pageNumCursor = firstPage; //first page of the range
+        readAhead = new ReadAhead(heapf.getId());
+        //getting the first page from teh file; the file's length is checked
+        //once here, and the count it leaves behind is used page by page
+        if (firstPage >= Math.min(endPage, heapf.numPages())) {
+            iterator = null;
+            return;
+        }
+        pinPage();
     }
     public boolean hasNext()throws DbException, TransactionAbortedException
     {
-        //
-        if(iterator == null) return false; //if iterator is null return fqlse
-        if(iterator.hasNext()) return true;//if the iterator has not reached the end of the page return true
-        if(pageNumCursor + 1 >=  heapf.numPages()) return false; //if all the pages have been read return false
-        while(pageNumCursor + 1 <  heapf.numPages() && !iterator.hasNext()){ //this loop finds the next page with any tuples in them
+        if(iterator == null) return false; //if iterator is null return false
+        while(!iterator.hasNext()){ //this loop finds the next page with any tuples in them
+            if(pageNumCursor + 1 >= lastPage()) { //if all the pages have been read return false
+                unpinPage();
+                return false;
+            }
             // move on to the next page
             pageNumCursor = pageNumCursor +1;
-            //get the bext page and its iterator
-            page = (HeapPage)Database.getBufferPool().getPage(tid, (PageId) new HeapPageId(heapf.getId(), pageNumCursor), Permissions.READ_ONLY);
-            iterator = page.iterator();
+            pinPage();
         }
-        return this.hasNext();
+        return true;
 
     }
 
     public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException{
 
-        if(iterator == null) //if iterator is null throws an exception
+        if(!hasNext()) //if iterator is null or exhausted throws an exception
             throw new NoSuchElementException();
         return iterator.next();
 
-//         if (iterator.hasNext()){
-//              return iterator.next();
-//         }
-//         else {
-//             throw new NoSuchElementException();
-//         }
+    }
 
+    /**
+     * Appends tuples to batch until it is full or the file is exhausted. The
+     * tuples are copied from the pages into the batch's column vectors, so
+     * pages never decode them.
+     */
+    void readBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+        while (!batch.isFull() && hasNext())
+            iterator.fill(batch);
     }
 
     public void rewind() throws DbException, TransactionAbortedException{
-        pageNumCursor =0; // go back to page number one
-        //get page
-        page = (HeapPage)Database.getBufferPool().getPage(tid, (PageId) new HeapPageId(heapf.getId(), pageNumCursor), Permissions.READ_ONLY);
-        iterator = page.iterator();
+        close();
+        open();
+    }
+
+    /** Pin the page under the cursor, releasing the previous one. */
+    private void pinPage() throws DbException, TransactionAbortedException {
+        unpinPage();
+        readAhead.advance(pageNumCursor, lastPage());
+        handle = Database.getBufferPool().pinPage(tid,
+                new HeapPageId(heapf.getId(), pageNumCursor), Permissions.READ_ONLY);
+        iterator = ((HeapPage) handle.getPage()).slotIterator(predicate);
+    }
+
+    private void unpinPage() {
+        if (handle != null) {
+            handle.close();
+            handle = null;
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.io.*;
 
@@ -17,9 +18,26 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    /**
+     * Tuples handed out or inserted so far, by slot. A used slot whose entry
+     * is null has not been decoded yet and is read from data on demand.
+     */
     final Tuple tuples[];
     final int numSlots;
+    /**
+     * The page image this page was created from; never written to. A page
+     * over shared bytes, e.g. a file mapping, moves to a private copy of
+     * them before they can be rewritten; see {@link #detach}.
+     */
+    private volatile ByteBuffer data;
+    /** Whether data is shared with others who may rewrite it. */
+    private boolean shared;
+    /** Offset of field i within a tuple. */
+    private final int[] fieldOffsets;
+    /** No slot before this one is free. */
+    private int freeHint = 0;
     private TransactionId lastDirty;
+    /** The before image, or null while it is still the page image in data. */
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
@@ -40,27 +58,43 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), false);
+    }
+
+    /**
+     * Create a HeapPage over the page image that starts at the position of
+     * data, e.g. a slice of a memory-mapped file. Only the header is read
+     * up front: the page keeps a reference to data and decodes tuples, and
+     * their fields, when they are first asked for. Neither this page nor
+     * its tuples ever write to data; whoever may rewrite it, e.g. by writing
+     * to the mapped file, must call {@link #detach} first. The page also
+     * detaches itself when it is marked dirty.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     * @see MappedHeapFile
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, true);
+    }
+
+    private HeapPage(HeapPageId id, ByteBuffer data, boolean shared) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.remaining() < BufferPool.getPageSize())
+            throw new EOFException("page data is shorter than a page");
+        this.data = data.slice();
+        this.shared = shared;
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+            header[i] = this.data.get(i);
 
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -83,7 +117,8 @@ public class HeapPage implements Page {
     }
 
     /** Return a view of this page before it was modified
-     -- used by recovery */
+     -- used by recovery. Until setBeforeImage is called, that is the page
+     image this page was read from, so it is only copied if it is shared. */
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
@@ -91,6 +126,10 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                detach();
+                return new HeapPage(pid, data.duplicate(), false);
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -101,12 +140,27 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
+        byte[] image = getPageData();
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            oldData = image;
         }
     }
 
+    /**
+     * Makes this page, and the tuples it has handed out, read from a private
+     * copy of its page image from now on, so that the bytes it was created
+     * from can be rewritten. Does nothing if the page owns its image.
+     */
+    synchronized void detach() {
+        if (!shared)
+            return;
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        data.duplicate().get(copy);
+        data = ByteBuffer.wrap(copy);
+        shared = false;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -114,40 +168,73 @@ public class HeapPage implements Page {
         return(this.pid);
     }
 
+    /** @return the offset in data of the tuple stored in slot */
+    private int tupleOffset(int slot) {
+        return header.length + slot * td.getSize();
+    }
+
+    /** @return the offset in data of field j of the tuple stored in slot */
+    private int fieldOffset(int slot, int j) {
+        return tupleOffset(slot) + fieldOffsets[j];
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in a used slot, creating a {@link LazyTuple} over
+     * the page image the first time the slot is asked for.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    synchronized Tuple getTuple(int slot) {
+        Tuple t = tuples[slot];
+        if (t == null) {
+            t = new LazyTuple(this, slot);
+            tuples[slot] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try{
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+    /**
+     * @return true if t, the tuple held in slot, still matches the bytes of
+     *     the page image, i.e. it has not been decoded, or was decoded from
+     *     this slot and not changed since
+     */
+    private boolean isPristine(int slot, Tuple t) {
+        if (t == null)
+            return true;
+        if (!(t instanceof LazyTuple))
+            return false;
+        LazyTuple lt = (LazyTuple) t;
+        return lt.page == this && lt.slot == slot && !lt.isModified();
+    }
+
+    /**
+     * Decodes field j of the tuple in slot straight from the page image.
+     */
+    private Field readField(int slot, int j) {
+        ByteBuffer buf = data.duplicate();
+        ((Buffer) buf).position(fieldOffset(slot, j));
+        try {
+            return td.getFieldType(j).parse(buf);
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
-
-        return t;
     }
 
+    /**
+     * Evaluates p against the tuple in a used slot. Slots that have not been
+     * decoded are compared on their serialized bytes, without creating a
+     * Tuple or any Fields.
+     */
+    boolean matches(int slot, Predicate p) {
+        Tuple t;
+        synchronized (this) {
+            t = tuples[slot];
+        }
+        if (!isPristine(slot, t))
+            return p.filter(t);
+        int field = p.getField();
+        return td.getFieldType(field).compare(data,
+                tupleOffset(slot) + fieldOffsets[field], p.getOp(), p.getOperand());
+    }
 
     /**
      * Generates a byte array representing the contents of this page.
@@ -161,39 +248,37 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
+        int tupleSize = td.getSize();
+        // empty slots and the padding at the end are left as zeros
+        byte[] page = new byte[BufferPool.getPageSize()];
+        System.arraycopy(header, 0, page, 0, header.length);
+
+        ByteBuffer image = data.duplicate();
+        ByteArrayOutputStream baos = null;
+        DataOutputStream dos = null;
         for (int i=0; i<tuples.length; i++) {
+            if (!isSlotUsed(i))
+                continue;
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+            // non-empty slot that is still as it was read: copy its bytes
+            int off = tupleOffset(i);
+            Tuple t;
+            synchronized (this) {
+                t = tuples[i];
+            }
+            if (isPristine(i, t)) {
+                ((Buffer) image).position(off);
+                image.get(page, off, tupleSize);
                 continue;
             }
 
-            // non-empty slot
+            if (baos == null) {
+                baos = new ByteArrayOutputStream(tupleSize);
+                dos = new DataOutputStream(baos);
+            }
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
 
@@ -201,24 +286,15 @@ public class HeapPage implements Page {
                     e.printStackTrace();
                 }
             }
+            try {
+                dos.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.arraycopy(baos.toByteArray(), 0, page, off, tupleSize);
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -251,6 +327,7 @@ public class HeapPage implements Page {
             //the tuple is in this page
             tuples[tupleNum]=null;
             markSlotUsed(tupleNum, false);
+            freeHint = Math.min(freeHint, tupleNum);
             return;
         }
 
@@ -266,11 +343,12 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        for (int i = 0; i < numSlots;i++){
+        for (int i = freeHint; i < numSlots;i++){
             if (!isSlotUsed(i)){
                 markSlotUsed(i, true);
                 t.setRecordId(new RecordId(pid, i));
                 tuples[i]= t;
+                freeHint = i + 1;
                 return;
             }
         }
@@ -285,6 +363,8 @@ public class HeapPage implements Page {
      */
     public void markDirty(boolean dirty, TransactionId tid) {
         if(dirty) {
+            // the page will be written back over the bytes it was read from
+            detach();
             lastDirty = tid;
         }
         else {
@@ -351,32 +431,160 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        Iterator<Tuple> it = new Iterator<Tuple>() {
-            int currSlot = 0;
-            @Override
-            public boolean hasNext() {
-                for(int i = currSlot; i < HeapPage.this.numSlots; i++ ){
-                    if (HeapPage.this.isSlotUsed(i)){
-                        return true;
-                    }
-                }
-                return false;
-            }
+        return iterator(null);
+    }
 
-            @Override
-            public Tuple next() {
-                while(currSlot < HeapPage.this.numSlots){
-                    if(HeapPage.this.isSlotUsed(currSlot)){
-                        currSlot ++;
-                        return(HeapPage.this.tuples[currSlot -1]);
-                    }
-                    currSlot ++;
-                }
-                return null;
+    /**
+     * @return an iterator over the tuples on this page that satisfy p, or
+     *     over all of them if p is null. The predicate is evaluated on the
+     *     serialized tuples, so tuples that fail it are never decoded.
+     */
+    public Iterator<Tuple> iterator(final Predicate p) {
+        return new SlotIterator(p);
+    }
+
+    /**
+     * @return the same iterator as {@link #iterator(Predicate)}, which can
+     *     also fill TupleBatches
+     */
+    SlotIterator slotIterator(Predicate p) {
+        return new SlotIterator(p);
+    }
+
+    /**
+     * Iterates over the used slots of this page that satisfy a predicate.
+     * Besides handing out Tuples, it can copy the slots it has not reached
+     * yet straight into a TupleBatch.
+     */
+    class SlotIterator implements Iterator<Tuple> {
+        private final Predicate p;
+        private int currSlot;
+
+        SlotIterator(Predicate p) {
+            this.p = p;
+            this.currSlot = advance(0);
+        }
+
+        /** @return the first slot at or after slot holding a match */
+        private int advance(int slot) {
+            while (slot < numSlots
+                    && (!isSlotUsed(slot) || (p != null && !matches(slot, p))))
+                slot++;
+            return slot;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return currSlot < numSlots;
+        }
+
+        @Override
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = getTuple(currSlot);
+            currSlot = advance(currSlot + 1);
+            return t;
+        }
+
+        /**
+         * Appends the remaining matches to batch, until the batch is full or
+         * the page is exhausted.
+         */
+        void fill(TupleBatch batch) {
+            while (currSlot < numSlots && !batch.isFull()) {
+                readInto(currSlot, batch);
+                currSlot = advance(currSlot + 1);
             }
-        };
-        return it;
+        }
 
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
+    /**
+     * Appends the tuple in a used slot to batch. Slots that have not been
+     * decoded are copied from the page image without creating any Fields.
+     */
+    private void readInto(int slot, TupleBatch batch) {
+        Tuple t;
+        synchronized (this) {
+            t = tuples[slot];
+        }
+        if (!isPristine(slot, t)) {
+            batch.addTuple(t);
+            return;
+        }
+        int row = batch.addRow();
+        int offset = tupleOffset(slot);
+        for (int j = 0; j < fieldOffsets.length; j++)
+            td.getFieldType(j).readInto(data, offset + fieldOffsets[j], batch, j, row);
+        batch.setRecordId(row, new RecordId(pid, slot));
+    }
+
+    /**
+     * A tuple that stays in its serialized form on the page until its fields
+     * are read. Each field is decoded the first time getField asks for it,
+     * so an operator that only looks at one column never decodes the others;
+     * getInt and getString read the page image without creating a Field.
+     * Setting a field decodes the whole tuple first; from then on the page
+     * serializes the tuple's fields instead of copying its original bytes.
+     */
+    static class LazyTuple extends Tuple {
+        private static final long serialVersionUID = 1L;
+
+        private final transient HeapPage page;
+        private final int slot;
+        private volatile boolean modified;
+
+        LazyTuple(HeapPage page, int slot) {
+            super(page.td);
+            this.page = page;
+            this.slot = slot;
+            setRecordId(new RecordId(page.pid, slot));
+        }
+
+        boolean isModified() {
+            return modified;
+        }
+
+        public Field getField(int i) {
+            Field f = super.getField(i);
+            if (f == null && !modified) {
+                f = page.readField(slot, i);
+                super.setField(i, f);
+            }
+            return f;
+        }
+
+        public int getInt(int i) {
+            if (modified || super.getField(i) != null)
+                return super.getInt(i);
+            return page.data.getInt(page.fieldOffset(slot, i));
+        }
+
+        public String getString(int i) {
+            if (modified || super.getField(i) != null)
+                return super.getString(i);
+            return Type.readString(page.data, page.fieldOffset(slot, i));
+        }
+
+        public void setField(int i, Field f) {
+            for (int j = 0; j < getTupleDesc().numFields(); j++)
+                getField(j);
+            modified = true;
+            super.setField(i, f);
+        }
+
+        /** Serialize as a plain Tuple, as the page does not travel along. */
+        private Object writeReplace() {
+            Tuple t = new Tuple(getTupleDesc());
+            for (int j = 0; j < getTupleDesc().numFields(); j++)
+                t.setField(j, getField(j));
+            t.setRecordId(getRecordId());
+            return t;
+        }
+    }
 }
@@ -0,0 +1,247 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins each tuple of child1 with the tuples of a
+ * B+ tree that satisfy the join predicate, which it finds by searching the
+ * tree with BTreeFile.indexIterator rather than by scanning it. A probe
+ * reads the pages on the path from the root to the first matching leaf,
+ * so joining a few outer tuples with a large table costs a few pages per
+ * tuple instead of a scan of the table.
+ * <p>
+ * child2 must be a SeqScan of a BTreeFile whose key field is the join
+ * field, possibly under Filters; child2 itself is never opened, and the
+ * predicates of the Filters are applied to the probed tuples. Only the
+ * predicates whose index search starts at the key, i.e. EQUALS, LESS_THAN
+ * and LESS_THAN_OR_EQ (which search for larger keys), are supported.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate jp;
+    private OpIterator child1;
+    private OpIterator child2;
+
+    // what child2 reads
+    private BTreeFile file;
+    private TransactionId tid;
+    private List<Predicate> filters;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            the scan of the B+ tree to probe, see
+     *            {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()) || !canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException("cannot probe " + child2 + " for " + p.getOperator());
+        this.jp = p;
+        setChildren(new OpIterator[] { child1, child2 });
+    }
+
+    /**
+     * @return true if an IndexNestedLoopJoin can evaluate join predicates
+     *         with op by searching the index
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if it is a SeqScan, possibly under Filters, of a
+     *         BTreeFile whose key field is field
+     */
+    public static boolean canProbe(OpIterator it, int field) {
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        if (!(it instanceof SeqScan))
+            return false;
+        DbFile f = ((SeqScan) it).dbfile;
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * @return the operator of the IndexPredicate that finds the keys k for
+     *         which (v op k) holds
+     */
+    private static Predicate.Op indexOp(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return jp;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(jp.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(jp.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    // the state of the join
+    transient private TupleBatch outer, out;
+    transient private int outerPos;
+    /** The search of the index for the current outer row, or null. */
+    transient private DbFileIterator probe;
+    /** The output batch being handed out by fetchNext. */
+    transient private TupleBatch pending;
+    transient private int pendingPos;
+
+    private void reset() {
+        if (probe != null)
+            probe.close();
+        probe = null;
+        outer = null;
+        out = null;
+        pending = null;
+    }
+
+    /** @return true if t passes all of child2's filters */
+    private boolean passes(Tuple t) {
+        for (Predicate p : filters) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Probes the index for each outer row in turn, and appends the joined
+     * rows to out.
+     *
+     * @return the next batch of output rows, or null if there are no more
+     */
+    private TupleBatch fillBatch() throws DbException, TransactionAbortedException {
+        if (out == null)
+            out = new TupleBatch(getTupleDesc());
+        out.clear();
+        TupleDesc td2 = file.getTupleDesc();
+        int td1n = child1.getTupleDesc().numFields();
+        while (!out.isFull()) {
+            if (probe == null) {
+                if (outer == null || outerPos >= outer.numSelected()) {
+                    outer = child1.nextBatch();
+                    outerPos = 0;
+                    if (outer == null)
+                        break;
+                }
+                Field v = outer.getField(jp.getField1(), outer.getSelected(outerPos));
+                probe = file.indexIterator(tid, new IndexPredicate(indexOp(jp.getOperator()), v));
+                probe.open();
+            }
+            if (!probe.hasNext()) {
+                probe.close();
+                probe = null;
+                outerPos++;
+                continue;
+            }
+            Tuple t = probe.next();
+            if (!passes(t))
+                continue;
+            int row = out.addRow();
+            out.copyFields(row, 0, outer, outer.getSelected(outerPos));
+            for (int i = 0; i < td2.numFields(); i++) {
+                if (td2.getFieldType(i) == Type.INT_TYPE)
+                    out.setInt(td1n + i, row, t.getInt(i));
+                else
+                    out.setString(td1n + i, row, t.getString(i));
+            }
+        }
+        return out.numRows() == 0 ? null : out;
+    }
+
+    /**
+     * Batch implementation: joined rows are copied column by column into an
+     * output batch, which is reused by every call.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        checkOpen();
+        return fillBatch();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with Join, output tuples are the concatenation of the
+     * joining tuples of child1 and child2.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pending == null || pendingPos >= pending.numSelected()) {
+            pending = fillBatch();
+            pendingPos = 0;
+            if (pending == null)
+                return null;
+        }
+        return pending.getTuple(pending.getSelected(pendingPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+        filters = new ArrayList<Predicate>();
+        OpIterator it = child2;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        file = (BTreeFile) ((SeqScan) it).dbfile;
+        tid = ((SeqScan) it).tid;
+    }
+
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -10,6 +11,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of tuples read from the child before they are inserted. */
+    private static final int BATCH_SIZE = 1024;
+
     /**
      * Constructor.
      *
@@ -68,7 +72,7 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         Tuple readTuple;
@@ -79,22 +83,35 @@ public class Insert extends Operator {
             return null;
         }
         read = true;
+        // hand the tuples to the BufferPool in batches, so the table fills
+        // each page in one go
+        ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
         while(child.hasNext()){
-            try{
-
-                readTuple = child.next();
-                Database.getBufferPool().insertTuple(tid,tableId, readTuple);
-            }catch(IOException e){
-                e.printStackTrace();
-            }
+            readTuple = child.next();
+            batch.add(readTuple);
             count++;
+            if (batch.size() == BATCH_SIZE)
+                insertBatch(batch);
         }
+        insertBatch(batch);
 
         ret.setField(0, new IntField(count));
 
         return ret;
     }
 
+    private void insertBatch(ArrayList<Tuple> batch)
+            throws DbException, TransactionAbortedException {
+        if (batch.isEmpty())
+            return;
+        try{
+            Database.getBufferPool().insertTuples(tid, tableId, batch.iterator());
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+        batch.clear();
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
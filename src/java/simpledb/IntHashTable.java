@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to non-negative int values, e.g. row indexes, using
+ * open addressing with linear probing over two flat arrays. Neither keys
+ * nor values are boxed, and a lookup reads at most a few adjacent array
+ * slots. Used for the build side of joins on INT_TYPE fields.
+ */
+public class IntHashTable {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * @param expected the number of keys to size the table for
+     */
+    public IntHashTable(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+    }
+
+    /** The murmur3 finalizer, so that nearby keys do not share a run. */
+    static int hash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the value of key, or -1 if it is not in the table
+     */
+    public int get(int key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int v = values[i];
+            if (v == EMPTY || keys[i] == key)
+                return v;
+        }
+    }
+
+    /**
+     * Maps key to value, which must not be negative.
+     *
+     * @return the value key was mapped to before, or -1 if there was none
+     */
+    public int put(int key, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("values must not be negative");
+        int i = hash(key) & mask;
+        for (; values[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        // keep the table at most half full, so that runs stay short
+        if (++size * 2 > keys.length)
+            rehash();
+        return EMPTY;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == EMPTY)
+                continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (values[i] != EMPTY)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * @return the number of keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all keys, keeping the arrays for reuse.
+     */
+    public void clear() {
+        Arrays.fill(values, EMPTY);
+        size = 0;
+    }
+}
+
+/**
+ * A bloom filter over int keys: mightContain is false for every key that
+ * was never added, and true for all added keys. Checking it costs a few bit
+ * tests, which is cheaper than a hash table probe that misses.
+ */
+class IntBloomFilter {
+    private static final int NUM_HASHES = 3;
+
+    private final long[] bits;
+    private final int mask;
+
+    /**
+     * @param expected the number of keys that will be added
+     * @param bitsPerKey the number of bits per key; 8 gives about 2% false
+     *     positives
+     */
+    public IntBloomFilter(int expected, int bitsPerKey) {
+        int numBits = 64;
+        while (numBits < (long) expected * bitsPerKey)
+            numBits <<= 1;
+        bits = new long[numBits / 64];
+        mask = numBits - 1;
+    }
+
+    public void add(int key) {
+        int h1 = IntHashTable.hash(key);
+        int h2 = (h1 >>> 16) | (h1 << 16);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(int key) {
+        int h1 = IntHashTable.hash(key);
+        int h2 = (h1 >>> 16) | (h1 << 16);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -4,11 +4,25 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Join is a block nested loops join: it reads a block of tuples from the
+ * outer relation (child1) into memory, scans the inner relation (child2)
+ * once, and compares each inner tuple with every tuple of the block. The
+ * size of the block is given in BufferPool pages; a block of one tuple,
+ * the default, is the plain tuple-at-a-time nested loops join.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** The block size the query optimizer uses, in pages of outer tuples. */
+    public static final int DEFAULT_BLOCK_PAGES = 32;
+
+    private JoinPredicate jp;
+    private OpIterator child1;
+    private OpIterator child2;
+    private final int blockPages;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -21,18 +35,25 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      *
      */
-
-    private JoinPredicate jp;
-    private OpIterator child1;
-    private OpIterator child2;
-    private Tuple currLeft; //current left tuple
-
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 0);
+    }
+
+    /**
+     * Creates a block nested loops join, which scans child2 once per block
+     * of child1's tuples instead of once per tuple.
+     *
+     * @param blockPages
+     *            the number of BufferPool pages' worth of child1's tuples
+     *            to compare child2's tuples with, or 0 to compare them with
+     *            one tuple at a time
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
         // some code goes here
         this.jp = p;
         this.child1 = child1;
         this.child2 = child2;
-        this.currLeft = null; //initialized to null
+        this.blockPages = blockPages;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -77,6 +98,7 @@ public class Join extends Operator {
         super.open();
         child1.open();
         child2.open();
+        reset();
     }
 
     public void close() {
@@ -84,14 +106,126 @@ public class Join extends Operator {
         super.close();
         child1.close();
         child2.close();
-        currLeft = null; //reverts to null
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
-        currLeft = null; //reverts to null
+        reset();
+    }
+
+    // the state of the join
+    transient private TupleBatch block, outer, inner, out;
+    transient private int outerPos, innerPos, blockPos;
+    transient private boolean outerDone, innerDone;
+    /** The output batch being handed out by fetchNext. */
+    transient private TupleBatch pending;
+    transient private int pendingPos;
+
+    private void reset() {
+        block = null;
+        outer = null;
+        inner = null;
+        out = null;
+        pending = null;
+        outerDone = false;
+        innerDone = false;
+    }
+
+    /** @return the number of child1's tuples compared with child2 at once */
+    private int blockSize() {
+        if (blockPages <= 0)
+            return 1;
+        // as many tuples as fit on blockPages heap pages
+        int perPage = (BufferPool.getPageSize() * 8) / (child1.getTupleDesc().getSize() * 8 + 1);
+        return Math.max(1, blockPages * perPage);
+    }
+
+    /** Fills block with the next tuples of child1. */
+    private void loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        blockPos = 0;
+        while (!outerDone && !block.isFull()) {
+            if (outer == null || outerPos >= outer.numSelected()) {
+                outer = child1.nextBatch();
+                outerPos = 0;
+                if (outer == null) {
+                    outerDone = true;
+                    break;
+                }
+            }
+            block.copyFields(block.addRow(), 0, outer, outer.getSelected(outerPos++));
+        }
+    }
+
+    /**
+     * @return true if row orow of block and row irow of inner satisfy the
+     *         join predicate; compared without creating any Fields
+     */
+    private boolean matches(int orow, int irow) {
+        int f1 = jp.getField1();
+        int f2 = jp.getField2();
+        if (child1.getTupleDesc().getFieldType(f1) == Type.INT_TYPE)
+            return IntField.compare(block.getInt(f1, orow), jp.getOperator(), inner.getInt(f2, irow));
+        return StringField.compare(block.getString(f1, orow), jp.getOperator(), inner.getString(f2, irow));
+    }
+
+    /**
+     * Joins the current block with the tuples of child2, moving on to the
+     * next block once child2 is exhausted.
+     *
+     * @return the next batch of output rows, or null if there are no more
+     */
+    private TupleBatch fillBatch() throws DbException, TransactionAbortedException {
+        if (block == null) {
+            block = new TupleBatch(child1.getTupleDesc(), blockSize());
+            out = new TupleBatch(getTupleDesc());
+            loadBlock();
+        }
+        out.clear();
+        int td1n = child1.getTupleDesc().numFields();
+        while (!out.isFull() && block.numRows() > 0) {
+            if (inner != null && innerPos < inner.numSelected()) {
+                // compare the current inner tuple with the rest of the block
+                int irow = inner.getSelected(innerPos);
+                while (blockPos < block.numRows() && !out.isFull()) {
+                    int orow = blockPos++;
+                    if (matches(orow, irow)) {
+                        int row = out.addRow();
+                        out.copyFields(row, 0, block, orow);
+                        out.copyFields(row, td1n, inner, irow);
+                    }
+                }
+                if (blockPos == block.numRows()) {
+                    blockPos = 0;
+                    innerPos++;
+                }
+            } else if (!innerDone) {
+                inner = child2.nextBatch();
+                innerPos = 0;
+                innerDone = inner == null;
+            } else {
+                // child2 is exhausted: start over with the next block
+                loadBlock();
+                if (block.numRows() > 0) {
+                    child2.rewind();
+                    inner = null;
+                    innerDone = false;
+                }
+            }
+        }
+        return out.numRows() == 0 ? null : out;
+    }
+
+    /**
+     * Batch implementation: joined rows are copied column by column into an
+     * output batch, which is reused by every call.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        checkOpen();
+        return fillBatch();
     }
 
     /**
@@ -114,29 +248,13 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-//        Tuple currLeft = null;
-        while(currLeft!=null || child1.hasNext()){ //outer loop for r1
-            if(currLeft==null){
-                currLeft = child1.next();
-            }
-            while (child2.hasNext()){ //inner loop for r2
-                Tuple currRight = child2.next();
-                if(jp.filter(currLeft,currRight)){ //if tuples match, create new tuple
-                    Tuple retTuple = new Tuple(this.getTupleDesc()); //merge Tuple descriptions
-                    for(int i = 0; i <currLeft.getTupleDesc().numFields(); i++){
-                        retTuple.setField(i, currLeft.getField(i));
-                    }
-                    int buffer = currLeft.getTupleDesc().numFields(); //needs to set fields of right tuple after the space taken up by left tuple
-                    for(int i = 0; i <currRight.getTupleDesc().numFields(); i++){
-                        retTuple.setField(i+buffer, currRight.getField(i));
-                    }
-                    return retTuple;
-                }
-            }
-            currLeft=null;
-            child2.rewind();
+        if (pending == null || pendingPos >= pending.numSelected()) {
+            pending = fillBatch();
+            pendingPos = 0;
+            if (pending == null)
+                return null;
         }
-        return null;
+        return pending.getTuple(pending.getSelected(pendingPos++));
     }
 
     @Override
@@ -14,6 +14,8 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    private static boolean indexJoins = false;
+
     /**
      * Constructor
      * 
@@ -27,6 +29,30 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    public static boolean getIndexJoins() {
+        return indexJoins;
+    }
+
+    /**
+     * Sets whether joins may be planned as IndexNestedLoopJoins. Off by
+     * default: every probe searches the B+ tree through
+     * BTreeFile.findLeafPage, which is not implemented yet.
+     */
+    public static void setIndexJoins(boolean enabled) {
+        JoinOptimizer.indexJoins = enabled;
+    }
+
+    /**
+     * @return true if a join with operator op whose right-hand side is keyed
+     *         on the join field is planned as an IndexNestedLoopJoin. Only
+     *         equality probes are: a range probe reads about a third of the
+     *         tree per left tuple, which costs more than a join that reads
+     *         it once.
+     */
+    private static boolean probes(Predicate.Op op) {
+        return indexJoins && op == Predicate.Op.EQUALS;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,7 +94,20 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (SortMergeJoin.supports(lj.p) && SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id)) {
+            // both inputs already arrive in join order: merge them
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (probes(lj.p) && IndexNestedLoopJoin.canProbe(plan2, t2id)) {
+            // look the matches of each plan1 tuple up in plan2's B+ tree
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (HashEquiJoin.supports(lj.p)) {
+            // hash plan1, then probe with each plan2 tuple
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            // scan plan2 once per block of plan1, not once per tuple
+            j = new Join(p, plan1, plan2, Join.DEFAULT_BLOCK_PAGES);
+        }
 
         return j;
 
@@ -102,17 +141,116 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2,
+                isKeyed(j.t1Alias, j.f1PureName), isKeyed(j.t2Alias, j.f2PureName));
+    }
+
+    /**
+     * Estimate the cost of a join, given which of its inputs are base
+     * tables stored in B+ trees keyed on the join field. Such an input is
+     * scanned in key order, and can be searched by key. The cost is that of
+     * the join algorithm instantiateJoin picks for j:
+     * <ul>
+     * <li>a merge join (both inputs keyed) compares each tuple about once:
+     * cost1 + cost2 + card1 + card2
+     * <li>an index nested loops join (right input keyed; EQUALS only, and
+     * only if index joins are enabled, see {@link #setIndexJoins}) reads the
+     * left side once, and for each left tuple the path from the root of the
+     * right side's tree to the leaf holding its matches: cost1 + card1 *
+     * probe cost
+     * <li>a hash join (EQUALS only) hashes and inserts each left tuple and
+     * hashes and probes with each right tuple: cost1 + cost2 + 2 * card1 +
+     * card2, plus writing out and reading back the spilled part of both
+     * sides if the left side does not fit in its memory budget (see
+     * {@link HashEquiJoin#setMemoryPages})
+     * <li>a block nested loops join reads the left side once, and the right
+     * side once per block of left tuples, and applies the predicate to
+     * every pair: cost1 + blocks * cost2 + card1 * card2
+     * </ul>
+     *
+     * @param keyed1
+     *            true if the left-hand side is a B+ tree keyed on its join
+     *            field
+     * @param keyed2
+     *            true if the right-hand side is a B+ tree keyed on its join
+     *            field
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean keyed1, boolean keyed2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
         }
+        if (SortMergeJoin.supports(j.p) && keyed1 && keyed2)
+            return cost1 + cost2 + card1 + card2;
+        if (probes(j.p) && keyed2)
+            return cost1 + card1 * probeCost(j, cost2);
+        if (HashEquiJoin.supports(j.p))
+            return hashJoinCost(j, card1, cost1, cost2) + 2.0 * card1 + card2;
+        double blocks = Math.ceil((double) card1 / blockTuples(j.t1Alias));
+        return cost1 + blocks * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * @return the cost of searching the right-hand side of j, a B+ tree
+     *         keyed on the join field, for the matches of one tuple: the
+     *         pages from the root to a leaf
+     */
+    private double probeCost(LogicalJoinNode j, double cost2) {
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(p.getTableId(j.t2Alias));
+        int pages = Math.max(1, f.numPages());
+        double pageCost = cost2 / pages;
+        int keySize = f.getTupleDesc().getFieldType(f.keyField()).getLen();
+        int fanout = Math.max(2, BufferPool.getPageSize() / (keySize + Type.INT_TYPE.getLen()));
+        double height = Math.ceil(Math.log(pages) / Math.log(fanout)) + 1;
+        return height * pageCost + 1;
+    }
+
+    /**
+     * @return the I/O cost of a hash join of j: one read of each side, and
+     *         if the left side overflows the join's memory budget, a write
+     *         and a read of the fraction of both sides that is spilled
+     */
+    private double hashJoinCost(LogicalJoinNode j, int card1, double cost1, double cost2) {
+        Integer tableid = p.getTableId(j.t1Alias);
+        if (tableid == null)
+            return cost1 + cost2;
+        int inMemory = HashEquiJoin.maxBuildRows(Database.getCatalog().getTupleDesc(tableid));
+        double spilled = card1 > inMemory ? 1.0 - (double) inMemory / card1 : 0;
+        return (1 + 2 * spilled) * (cost1 + cost2);
+    }
+
+    /**
+     * @return true if the table with the given alias is a B+ tree keyed on
+     *         field, so that scanning it returns tuples sorted on field
+     */
+    private boolean isKeyed(String tableAlias, String field) {
+        Integer tableid = tableAlias == null ? null : p.getTableId(tableAlias);
+        if (tableid == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile))
+            return false;
+        TupleDesc td = f.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (field.equals(td.getFieldName(i)))
+                return ((BTreeFile) f).keyField() == i;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of tuples of the given table in a block of a block
+     *         nested loops join
+     */
+    private int blockTuples(String tableAlias) {
+        Integer tableid = p.getTableId(tableAlias);
+        if (tableid == null)
+            return 1;
+        int tupleBits = Database.getCatalog().getTupleDesc(tableid).getSize() * 8 + 1;
+        return Math.max(1, Join.DEFAULT_BLOCK_PAGES * (BufferPool.getPageSize() * 8 / tupleBits));
     }
 
     /**
@@ -286,6 +424,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // a subplan is never keyed, a base table may be a B+ tree on the field
+        boolean leftKeyed, rightKeyed;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -301,6 +441,8 @@ public class JoinOptimizer {
                             filterSelectivities.get(j.t2Alias));
             rightPkey = table2Alias == null ? false : isPkey(table2Alias,
                     j.f2PureName);
+            leftKeyed = isKeyed(j.t1Alias, j.f1PureName);
+            rightKeyed = isKeyed(j.t2Alias, j.f2PureName);
         } else {
             // news is not empty -- figure best way to join j to news
             prevBest = pc.getOrder(news);
@@ -329,6 +471,8 @@ public class JoinOptimizer {
                                 filterSelectivities.get(j.t2Alias));
                 rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
                         j.f2PureName);
+                leftKeyed = false;
+                rightKeyed = isKeyed(j.t2Alias, j.f2PureName);
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
@@ -341,6 +485,8 @@ public class JoinOptimizer {
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
+                leftKeyed = isKeyed(j.t1Alias, j.f1PureName);
+                rightKeyed = false;
 
             } else {
                 // don't consider this plan if one of j.t1 or j.t2
@@ -350,10 +496,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                leftKeyed, rightKeyed);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                rightKeyed, leftKeyed);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -48,6 +48,8 @@ public class JoinPredicate implements Serializable {
 //        Field tup1 = t1.getField(this.field1);
 //        Field tup2 = t2.getField(this.field2);
 //        boolean ret = tup1.compare(this.op,tup2);
+        if (t1.getTupleDesc().getFieldType(field1) == Type.INT_TYPE) // without creating IntFields
+            return IntField.compare(t1.getInt(field1), op, t2.getInt(field2));
         return t1.getField(field1).compare(op,t2.getField(field2));
     }
     
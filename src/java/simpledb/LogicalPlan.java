@@ -12,9 +12,8 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, group by fields and aggregates,
+ * which are all computed by one Aggregate.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,12 +28,14 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    // the aggregates, as parallel lists of operator and field
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int oByLimit = OrderBy.NO_LIMIT;
     private String query;
 //    private Query owner;
 
@@ -186,23 +187,52 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
+        addAggregate(op, afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+    }
+
+    /** Add an aggregate over the field to the query. All of the query's
+        aggregates are computed in one pass over its input.
+        @param op the aggregation operator
+        @param afield the field to aggregate over
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        afield=disambiguateName(afield);
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.addElement(op);
+            aggFields.addElement(afield);
+        }
         hasAgg = true;
     }
 
+    /** Add a field to the GROUP BY list of the query.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the index of aggregate op(afield) among the query's aggregates, or -1 */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equalsIgnoreCase(op) && aggFields.elementAt(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -210,9 +240,21 @@ public class LogicalPlan {
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
+        addOrderBy(field, asc, OrderBy.NO_LIMIT);
+    }
+
+    /** Add an ORDER BY expression with a LIMIT: only the first limit tuples of the order are
+        returned, and only they are kept in memory while sorting.
+        @param field the field to order by
+        @param asc true if should be ordered in ascending order, false for descending order
+        @param limit the number of tuples to return, or OrderBy.NO_LIMIT
+     * @throws ParsingException 
+    */
+    public void addOrderBy(String field, boolean asc, int limit) throws ParsingException {
         field=disambiguateName(field);
         oByField = field;
         oByAsc = asc;
+        oByLimit = limit;
         hasOrderBy = true;
     }
 
@@ -408,74 +450,81 @@ public class LogicalPlan {
         
         OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
 
+        if (hasAgg) {
+            // all of the aggregates are computed by one Aggregate
+            TupleDesc td = node.getTupleDesc();
+            int[] gfields = new int[groupByFields.size()];
+            for (int i = 0; i < gfields.length; i++) {
+                try {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " +  groupByFields.elementAt(i) + " in GROUP BY statement");
+                }
+            }
+            int[] afields = new int[aggFields.size()];
+            Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+            for (int i = 0; i < afields.length; i++) {
+                try {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " +  aggFields.elementAt(i) + " in SELECT list");
+                }
+                ops[i] = getAggOp(aggOps.elementAt(i));
+            }
+            try {
+                node = new Aggregate(node, afields, gfields, ops,
+                        Aggregate.isGroupedOn(node, gfields));
+            } catch (IllegalArgumentException e) {
+                throw new simpledb.ParsingException(e);
+            }
+        }
+
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
         ArrayList<Type> outTypes = new ArrayList<Type>();
+        TupleDesc outTd = node.getTupleDesc();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int agg = aggregateIndex(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
                 }
-                outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
+                // the aggregates follow the group by fields
+                int id = groupByFields.size();
+                for (int j = 0; j < agg; j++)
+                    id += getAggOp(aggOps.elementAt(j)) == Aggregator.Op.SUM_COUNT ? 2 : 1;
+                outFields.add(id);
+                outTypes.add(outTd.getFieldType(id));
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int id = groupByFields.indexOf(si.fname);
+                    if (id < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
-                    TupleDesc td = node.getTupleDesc();
-                    int  id;
-                    try {
-                        id = td.fieldNameToIndex(groupByField);
-                    } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
-                    }
-                    outTypes.add(td.getFieldType(id));
+                    outFields.add(id);
+                    outTypes.add(outTd.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
-                    TupleDesc td = node.getTupleDesc();
-                    for ( i = 0; i < td.numFields(); i++) {
+                    for ( i = 0; i < outTd.numFields(); i++) {
                         outFields.add(i);
-                        outTypes.add(td.getFieldType(i));
+                        outTypes.add(outTd.getFieldType(i));
                     }
             } else  {
-                    TupleDesc td = node.getTupleDesc();
                     int id;
                     try {
-                        id = td.fieldNameToIndex(si.fname);
+                        id = outTd.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
                         throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                     }
                     outFields.add(id);
-                    outTypes.add(td.getFieldType(id));
+                    outTypes.add(outTd.getFieldType(id));
 
                 }
         }
 
-        if (hasAgg) {
-            TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
-            try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
-            } catch (NoSuchElementException e) {
-                throw new simpledb.ParsingException(e);
-            } catch (IllegalArgumentException e) {
-                throw new simpledb.ParsingException(e);
-            }
-            node = aggNode;
-        }
-
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            node = new OrderBy(new int[] { node.getTupleDesc().fieldNameToIndex(oByField) },
+                    new boolean[] { oByAsc }, oByLimit, node);
         }
 
         return new Project(outFields, outTypes, node);
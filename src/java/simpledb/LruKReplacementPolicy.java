@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the frame
+ * whose K-th most recent reference is oldest; frames that have been
+ * referenced fewer than K times have an infinite backward distance and are
+ * evicted first, least recently used first.
+ * <p>
+ * Frames with fewer than K references live in a linked list in LRU order, so
+ * a scan that touches each page once is evicted in constant time without
+ * disturbing the hot set. Frames with K or more references are ordered by
+ * their K-th reference time; that ordering costs O(log numFrames) per hit,
+ * independent of the number of accesses. Pinned frames are taken out of
+ * both structures and keep their history until they are unpinned.
+ * <p>
+ * Hits are logged in an {@link AccessBuffer} and applied when the next
+ * victim is chosen, so reporting one takes no lock.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    /** Default K used by {@link #LruKReplacementPolicy(int)}. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    /** history[f][0] is the most recent reference time of frame f. */
+    private final long[][] history;
+    private final int[] refs;
+    private final boolean[] pinned;
+    private final FrameList cold;
+    private final AccessBuffer hits;
+    private final TreeMap<Long, Integer> hot = new TreeMap<Long, Integer>();
+    private long clock = 0;
+
+    /**
+     * @param numFrames the number of frames in the BufferPool
+     */
+    public LruKReplacementPolicy(int numFrames) {
+        this(numFrames, DEFAULT_K);
+    }
+
+    /**
+     * @param numFrames the number of frames in the BufferPool
+     * @param k the number of references to track per frame
+     */
+    public LruKReplacementPolicy(int numFrames, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        this.history = new long[numFrames][k];
+        this.refs = new int[numFrames];
+        this.pinned = new boolean[numFrames];
+        this.cold = new FrameList(numFrames);
+        this.hits = new AccessBuffer(numFrames);
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        forget(frame);
+        reference(frame);
+    }
+
+    public void pageAccessed(int frame) {
+        hits.record(frame);
+    }
+
+    public void frameFreed(int frame) {
+        forget(frame);
+    }
+
+    public void setEvictable(int frame, boolean evictable) {
+        if (refs[frame] == 0 || pinned[frame] == !evictable)
+            return;
+        if (evictable) {
+            pinned[frame] = false;
+            enqueue(frame);
+        } else {
+            dequeue(frame);
+            pinned[frame] = true;
+        }
+    }
+
+    public int victim() {
+        hits.drain(this::hit);
+        int frame = cold.pollFirst();
+        if (frame == -1) {
+            Map.Entry<Long, Integer> e = hot.pollFirstEntry();
+            if (e == null)
+                return -1;
+            frame = e.getValue();
+        }
+        refs[frame] = 0;
+        return frame;
+    }
+
+    /** Applies a logged hit, unless frame has since been evicted or freed. */
+    private void hit(int frame) {
+        if (refs[frame] > 0)
+            reference(frame);
+    }
+
+    private void reference(int frame) {
+        long[] h = history[frame];
+        dequeue(frame);
+        System.arraycopy(h, 0, h, 1, k - 1);
+        h[0] = ++clock;
+        if (refs[frame] < k)
+            refs[frame]++;
+        enqueue(frame);
+    }
+
+    /** Put frame in the cold list or the hot set, unless it is pinned. */
+    private void enqueue(int frame) {
+        if (pinned[frame])
+            return;
+        if (refs[frame] < k)
+            cold.addLast(frame);
+        else
+            hot.put(history[frame][k - 1], frame);
+    }
+
+    private void dequeue(int frame) {
+        if (refs[frame] >= k)
+            hot.remove(history[frame][k - 1]);
+        cold.remove(frame);
+    }
+
+    private void forget(int frame) {
+        dequeue(frame);
+        refs[frame] = 0;
+        pinned[frame] = false;
+    }
+}
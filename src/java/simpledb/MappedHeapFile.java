@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.*;
+
+/**
+ * MappedHeapFile is a HeapFile whose pages are read through a read-only
+ * memory mapping of the data file instead of a read call per page. A
+ * BufferPool miss then decodes the HeapPage straight out of the mapping: no
+ * system call and no intermediate copy of the page, and the operating
+ * system's page cache does the caching. It is meant for read-mostly tables.
+ * <p>
+ * Writes still go through {@link HeapFile#writePage}; the mapping is shared
+ * with the file, so they are visible through it. Before a page is written,
+ * the pages already read from its bytes are detached onto a copy of them,
+ * so tuples handed out earlier keep their values. When the file grows (e.g.
+ * because insertTuple added a page), the next read of a page past the end
+ * of the current mapping maps the file again at its new size.
+ *
+ * @see HeapFile
+ * @see HeapPage#HeapPage(HeapPageId, ByteBuffer)
+ */
+public class MappedHeapFile extends HeapFile {
+
+    private volatile MappedByteBuffer map;
+    /** The pages read from the mapping, by id, until their bytes are rewritten. */
+    private final HashMap<PageId, Set<HeapPage>> readers = new HashMap<PageId, Set<HeapPage>>();
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (pid.getPageNumber() < 0 || !hasPage(pid.getPageNumber())) {
+            throw new IllegalArgumentException("Page number does not exist in this file");
+        }
+
+        int pageSize = BufferPool.getPageSize();
+        int begin = pid.getPageNumber() * pageSize;
+        try {
+            ByteBuffer view = mapping(begin + pageSize).duplicate();
+            ((Buffer) view).position(begin);
+            ((Buffer) view).limit(begin + pageSize);
+            HeapPage page = new HeapPage((HeapPageId) pid, view);
+            synchronized (readers) {
+                Set<HeapPage> pages = readers.get(pid);
+                if (pages == null) {
+                    pages = Collections.newSetFromMap(new WeakHashMap<HeapPage, Boolean>());
+                    readers.put(pid, pages);
+                }
+                pages.add(page);
+            }
+            return page;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Detaches the pages read from the bytes of page before writing it over
+     * them.
+     */
+    public void writePage(Page page) throws IOException {
+        synchronized (readers) {
+            Set<HeapPage> pages = readers.remove(page.getId());
+            if (pages != null) {
+                for (HeapPage p : pages)
+                    p.detach();
+            }
+        }
+        super.writePage(page);
+    }
+
+    /**
+     * @return a mapping of the file covering at least its first size bytes,
+     *     remapping the whole file if the current mapping is too short
+     */
+    private MappedByteBuffer mapping(long size) throws IOException {
+        MappedByteBuffer m = map;
+        if (m == null || m.capacity() < size) {
+            synchronized (this) {
+                m = map;
+                if (m == null || m.capacity() < size) {
+                    long length = getFile().length();
+                    if (length > Integer.MAX_VALUE)
+                        throw new IOException("file too large to map: " + getFile());
+                    m = channel.map(length);
+                    map = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Closes the file handle and drops the current mapping; the file is
+     * mapped again if it is read after this.
+     */
+    public void close() throws IOException {
+        map = null;
+        super.close();
+    }
+}
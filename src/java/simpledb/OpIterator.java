@@ -34,6 +34,33 @@ public interface OpIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next block of tuples in columnar form. Operators that can
+   * process a whole batch per call override this; the default reads the
+   * tuples one at a time with hasNext and next.
+   * <p>
+   * A caller should use either nextBatch or next between an open (or
+   * rewind) and the end of the iteration, not both. The returned batch may
+   * be reused by the next call, so its rows must be copied to be kept.
+   *
+   * @return a batch with at least one selected row, or null if there are
+   *   no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   * @see TupleBatch
+   */
+  default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+      return TupleBatch.read(this);
+  }
+
+  /**
+   * @return true if a batch returned by nextBatch may be reused by the next
+   *   call, as the default is; false if every call returns a new batch,
+   *   which the caller may keep without copying it.
+   */
+  default boolean reusesBatches() {
+      return true;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
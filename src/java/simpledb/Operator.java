@@ -12,9 +12,7 @@ public abstract class Operator implements OpIterator {
     private static final long serialVersionUID = 1L;
 
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        if (!this.open)
-            throw new IllegalStateException("Operator not yet open");
-        
+        checkOpen();
         if (next == null)
             next = fetchNext();
         return next != null;
@@ -33,6 +31,14 @@ public abstract class Operator implements OpIterator {
         return result;
     }
 
+    /**
+     * @throws IllegalStateException if this operator has not been opened
+     */
+    protected void checkOpen() {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
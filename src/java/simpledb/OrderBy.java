@@ -4,21 +4,41 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It is an external merge sort. The child's tuples are copied into a run
+ * of at most runPages BufferPool pages' worth of CompactTuples, which is
+ * sorted in memory. If the child does not fit in one run, each sorted run
+ * is written to a SpillFile, and the runs are then merged MERGE_FAN_IN at
+ * a time with a loser tree, until one merge of the remaining runs can
+ * produce the output. With a limit, only the first limit tuples of each
+ * run are kept, and a limit that fits in one run is a top-N sort: the
+ * child's tuples go through a heap of the limit smallest tuples seen so
+ * far, which takes O(limit) memory and O(log limit) time per tuple.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The limit of an OrderBy that returns all of its child's tuples. */
+    public static final int NO_LIMIT = -1;
+    /** The default size of a run, in pages. */
+    public static final int DEFAULT_RUN_PAGES = 1000;
+    /** The number of runs merged at once. */
+    public static final int MERGE_FAN_IN = 32;
+
+    private static int runPages = DEFAULT_RUN_PAGES;
+
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private int limit;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private TupleComparator comparator;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,65 +47,234 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, NO_LIMIT, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied; ties on a field
+     *            are ordered by the next one
+     * @param asc
+     *            for each field, true if the sort order is ascending
+     * @param limit
+     *            the maximum number of tuples to return, or NO_LIMIT
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields;
+        this.ascs = asc;
+        this.limit = limit;
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.comparator = new TupleComparator(orderbyFields, asc);
+    }
+
+    /**
+     * @return the size of the runs sorted in memory, in BufferPool pages
+     */
+    public static int getRunPages() {
+        return runPages;
     }
-    
+
+    /**
+     * Sets the size of the runs sorted in memory, for OrderBys opened from
+     * now on.
+     */
+    public static void setRunPages(int pages) {
+        runPages = pages;
+    }
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /**
+     * @return all fields the sort is applied to, most significant first
+     */
+    public int[] getOrderByFields() {
+        return this.orderByFields;
+    }
+
+    /**
+     * @return the maximum number of tuples returned, or NO_LIMIT
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    // the sorted tuples: either one run in memory, or runs on disk
+    transient private CompactTuple[] sorted;
+    transient private List<SpillFile> runs;
+    transient private LoserTree merge;
+    transient private int returned;
+
+    /** @return the number of tuples sorted in memory at once */
+    private int runSize() {
+        // as many tuples as fit on runPages heap pages
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1L, (long) runPages * perPage));
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        reset();
+        int runSize = runSize();
+        if (limit >= 0 && limit <= runSize) {
+            sorted = topN();
+            super.open();
+            return;
+        }
+        List<CompactTuple> run = new ArrayList<CompactTuple>();
+        CompactTuple.Arena arena = new CompactTuple.Arena();
+        while (child.hasNext()) {
+            run.add(arena.copy(child.next()));
+            if (run.size() == runSize && child.hasNext()) {
+                spill(run);
+                run.clear();
+                arena = new CompactTuple.Arena();
+            }
+        }
+        if (runs == null) {
+            // everything fit in memory
+            sorted = run.toArray(new CompactTuple[run.size()]);
+            Arrays.sort(sorted, comparator);
+        } else {
+            // the last run is merged along with the others
+            spill(run);
+            while (runs.size() > MERGE_FAN_IN) {
+                List<SpillFile> inputs = new ArrayList<SpillFile>(runs.subList(0, MERGE_FAN_IN));
+                runs.subList(0, MERGE_FAN_IN).clear();
+                SpillFile out = new SpillFile(td);
+                LoserTree tree = new LoserTree(inputs);
+                for (Tuple t = tree.next(); t != null && !limitReached(out.size()); t = tree.next())
+                    out.add(t);
+                tree.close();
+                for (SpillFile f : inputs)
+                    f.delete();
+                runs.add(out);
+            }
+            merge = new LoserTree(runs);
+        }
         super.open();
     }
 
+    /**
+     * @return the first limit tuples of the child, in order. They are kept
+     *         in a heap whose root is the last of them, so a child tuple
+     *         that does not belong in the result costs one comparison and
+     *         is not copied.
+     */
+    private CompactTuple[] topN() throws DbException, TransactionAbortedException {
+        PriorityQueue<CompactTuple> heap = new PriorityQueue<CompactTuple>(
+                Math.max(1, limit), Collections.reverseOrder(comparator));
+        CompactTuple.Arena arena = new CompactTuple.Arena();
+        int copied = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() == limit) {
+                if (limit == 0 || comparator.compare(t, heap.peek()) >= 0)
+                    continue;
+                heap.poll();
+            }
+            heap.add(arena.copy(t));
+            if (++copied > 2 * limit + 1000) {
+                // the arena still holds the strings of the tuples that
+                // were evicted: copy the survivors to a new one
+                List<CompactTuple> live = new ArrayList<CompactTuple>(heap);
+                heap.clear();
+                arena = new CompactTuple.Arena();
+                for (CompactTuple c : live)
+                    heap.add(arena.copy(c));
+                copied = heap.size();
+            }
+        }
+        CompactTuple[] top = heap.toArray(new CompactTuple[heap.size()]);
+        Arrays.sort(top, comparator);
+        return top;
+    }
+
+    private boolean limitReached(int count) {
+        return limit >= 0 && count >= limit;
+    }
+
+    /** Sorts run and writes (at most limit of) its tuples to a new run file. */
+    private void spill(List<CompactTuple> run) throws DbException {
+        CompactTuple[] tuples = run.toArray(new CompactTuple[run.size()]);
+        Arrays.sort(tuples, comparator);
+        SpillFile f = new SpillFile(td);
+        for (int i = 0; i < tuples.length && !limitReached(i); i++)
+            f.add(tuples[i]);
+        if (runs == null)
+            runs = new ArrayList<SpillFile>();
+        runs.add(f);
+    }
+
+    private void reset() {
+        if (merge != null)
+            merge.close();
+        merge = null;
+        if (runs != null) {
+            for (SpillFile f : runs)
+                f.delete();
+        }
+        runs = null;
+        sorted = null;
+        returned = 0;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        returned = 0;
+        if (merge != null) {
+            merge.close();
+            merge = new LoserTree(runs);
+        }
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+        if (limitReached(returned))
             return null;
+        Tuple t;
+        if (merge != null)
+            t = merge.next();
+        else
+            t = returned < sorted.length ? sorted[returned] : null;
+        if (t != null)
+            returned++;
+        return t;
     }
 
     @Override
@@ -98,26 +287,116 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
+    /**
+     * A k-way merge of sorted runs. Each inner node of the tree keeps the
+     * run whose head lost the comparison there, and tree[0] the overall
+     * winner, so replacing the winner's head only replays the comparisons
+     * on its path to the root: log2(k) comparisons per tuple.
+     */
+    private class LoserTree {
+        private final OpIterator[] inputs;
+        private final Tuple[] heads;
+        private final int[] tree;
+
+        LoserTree(List<SpillFile> runs) throws DbException, TransactionAbortedException {
+            int k = runs.size();
+            inputs = new OpIterator[k];
+            heads = new Tuple[k];
+            tree = new int[Math.max(1, k)];
+            Arrays.fill(tree, -1);
+            for (int i = 0; i < k; i++) {
+                inputs[i] = runs.get(i).iterator();
+                inputs[i].open();
+                heads[i] = read(i);
+            }
+            for (int i = k - 1; i >= 0; i--)
+                adjust(i);
+        }
+
+        private Tuple read(int i) throws DbException, TransactionAbortedException {
+            return inputs[i].hasNext() ? inputs[i].next() : null;
+        }
+
+        /** @return true if the head of run a comes before that of run b */
+        private boolean before(int a, int b) {
+            if (heads[b] == null)
+                return heads[a] != null || a < b;
+            if (heads[a] == null)
+                return false;
+            int c = comparator.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** Plays run s's new head up the tree to the root. */
+        private void adjust(int s) {
+            int k = inputs.length;
+            for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+                if (tree[t] == -1) {
+                    // still building the tree: wait for the other subtree
+                    tree[t] = s;
+                    return;
+                }
+                if (before(tree[t], s)) {
+                    int winner = tree[t];
+                    tree[t] = s;
+                    s = winner;
+                }
+            }
+            tree[0] = s;
+        }
+
+        /** @return the smallest head, or null once all runs are exhausted */
+        Tuple next() throws DbException, TransactionAbortedException {
+            if (inputs.length == 0)
+                return null;
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t != null) {
+                heads[w] = read(w);
+                adjust(w);
+            }
+            return t;
+        }
+
+        void close() {
+            for (OpIterator it : inputs)
+                it.close();
+        }
+    }
+
 }
 
+/**
+ * Orders tuples on one or more fields. INT_TYPE and STRING_TYPE fields
+ * are compared with getInt and getString, once per field, so comparing
+ * compact tuples creates no Fields.
+ */
 class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    int[] fields;
+    boolean[] asc;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
         this.asc = asc;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        TupleDesc td = o1.getTupleDesc();
+        for (int i = 0; i < fields.length; i++) {
+            int f = fields[i];
+            int c;
+            if (td.getFieldType(f) == Type.INT_TYPE)
+                c = Integer.compare(o1.getInt(f), o2.getInt(f));
+            else
+                c = o1.getString(f).compareTo(o2.getString(f));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
     }
-    
+
 }
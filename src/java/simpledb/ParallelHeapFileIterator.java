@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a HeapFile on several threads. The file is split into ranges of
+ * CHUNK_PAGES pages; each of the worker threads claims the next unread
+ * range, reads it with a HeapFileIterator (applying the predicate to the
+ * serialized tuples, if any) into TupleBatches, and hands them to the
+ * consumer through a bounded queue. Workers block once the queue is full,
+ * so a slow consumer does not make the whole file pile up in memory.
+ * <p>
+ * Tuples come out in no particular order. Batches returned by nextBatch
+ * are not reused, so they may be kept by the caller.
+ */
+public class ParallelHeapFileIterator implements DbFileIterator {
+
+    /** The number of pages a worker claims at a time. */
+    public static final int CHUNK_PAGES = 16;
+    /** The number of full batches that may wait in the queue, per worker. */
+    static final int BATCHES_PER_WORKER = 4;
+
+    private static ExecutorService executor;
+
+    private final HeapFile heapf;
+    private final TransactionId tid;
+    private final Predicate predicate;
+    private final int parallelism;
+    private final TupleDesc td;
+
+    private Pass pass;
+    private TupleBatch current;
+    private int pos;
+
+    /**
+     * @param predicate the predicate to apply, or null for all tuples
+     * @param parallelism the number of threads reading the file
+     */
+    public ParallelHeapFileIterator(HeapFile heapf, TransactionId tid, Predicate predicate,
+            int parallelism) {
+        this(heapf, tid, predicate, parallelism, heapf.getTupleDesc());
+    }
+
+    /**
+     * @param td the TupleDesc of the returned batches, e.g. the file's with
+     *        the field names of a SeqScan
+     */
+    ParallelHeapFileIterator(HeapFile heapf, TransactionId tid, Predicate predicate,
+            int parallelism, TupleDesc td) {
+        this.heapf = heapf;
+        this.tid = tid;
+        this.predicate = predicate;
+        this.parallelism = Math.max(1, parallelism);
+        this.td = td;
+    }
+
+    /**
+     * @return the pool of daemon threads that parallel operators run their
+     *         workers on
+     */
+    static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "parallel worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * One pass over the file. Workers of a closed pass may still be
+     * finishing their last batch, so each pass has its own queue.
+     */
+    private class Pass implements Runnable {
+        final BlockingQueue<TupleBatch> queue;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        /** Put in the queue by each worker when it finishes. */
+        final TupleBatch done = new TupleBatch(td, 1);
+        volatile boolean cancelled;
+        /** What made a worker stop early, including Errors. */
+        volatile Throwable failure;
+        int running;
+
+        Pass(int workers) {
+            queue = new ArrayBlockingQueue<TupleBatch>(workers * (BATCHES_PER_WORKER + 1));
+            running = workers;
+        }
+
+        /** The body of a worker: reads ranges until none are left. */
+        public void run() {
+            try {
+                int chunk;
+                while (!cancelled
+                        && (chunk = nextChunk.getAndIncrement()) * CHUNK_PAGES < heapf.cachedNumPages()) {
+                    HeapFileIterator it = new HeapFileIterator(heapf, tid, predicate,
+                            chunk * CHUNK_PAGES, (chunk + 1) * CHUNK_PAGES);
+                    try {
+                        it.open();
+                        while (!cancelled) {
+                            TupleBatch batch = new TupleBatch(td);
+                            it.readBatch(batch);
+                            if (batch.numRows() == 0)
+                                break;
+                            put(batch);
+                        }
+                    } finally {
+                        it.close();
+                    }
+                }
+            } catch (Throwable e) {
+                // even an Error must reach the consumer, or it would take
+                // the done marker below for the end of the file
+                failure = e;
+            } finally {
+                try {
+                    put(done);
+                } catch (InterruptedException e) {
+                    // only happens if the JVM is shutting down
+                }
+            }
+        }
+
+        /** Queues batch, giving up if the consumer closes the iterator. */
+        private void put(TupleBatch batch) throws InterruptedException {
+            while (!queue.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+                if (cancelled)
+                    return;
+            }
+        }
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        close();
+        int chunks = (heapf.numPages() + CHUNK_PAGES - 1) / CHUNK_PAGES;
+        int workers = Math.max(1, Math.min(parallelism, chunks));
+        pass = new Pass(workers);
+        for (int i = 0; i < workers; i++)
+            executor().execute(pass);
+    }
+
+    /**
+     * @return the next batch read by any worker, or null once all of the
+     *         file has been read
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (pass == null)
+            return null;
+        try {
+            while (pass.running > 0) {
+                TupleBatch batch = pass.queue.take();
+                if (batch != pass.done)
+                    return batch;
+                pass.running--;
+                Throwable failure = pass.failure;
+                if (failure instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) failure;
+                if (failure instanceof DbException)
+                    throw (DbException) failure;
+                if (failure != null) {
+                    DbException e = new DbException("parallel scan failed: " + failure);
+                    e.initCause(failure);
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while scanning " + heapf.getId());
+        }
+        return null;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        while (current == null || pos >= current.numSelected()) {
+            current = nextBatch();
+            pos = 0;
+            if (current == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return current.getTuple(current.getSelected(pos++));
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /** Stops the workers, which release their pages and exit. */
+    public void close() {
+        if (pass != null) {
+            pass.cancelled = true;
+            pass.queue.clear();
+        }
+        pass = null;
+        current = null;
+    }
+}
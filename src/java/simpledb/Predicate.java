@@ -104,6 +104,8 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
+        if (operand instanceof IntField) // compare without creating an IntField
+            return IntField.compare(t.getInt(field), op, ((IntField) operand).getValue());
         Field fieldToTest = t.getField(field);
         return fieldToTest.compare(op,operand);
     }
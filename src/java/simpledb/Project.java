@@ -80,6 +80,17 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Batch implementation: each of the child's batches is returned with only
+     * the projected columns. The column vectors are shared, not copied.
+     */
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        checkOpen();
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(outFieldIds, td);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -170,16 +170,25 @@ public class QueryPlanVisualizer {
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
+                TupleDesc childTd = children[0].getTupleDesc();
                 int gfield = a.groupField();
 
+                String aggs = "";
+                for (int i = 0; i < a.aggregateFields().length; i++) {
+                    aggs += String.format("%1$s%2$s(%3$s)", i > 0 ? ", " : "",
+                            a.aggregateOps()[i],
+                            childTd.getFieldName(a.aggregateFields()[i]));
+                }
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    String groups = "";
+                    for (int g : a.groupFields())
+                        groups += (groups.isEmpty() ? "" : ", ") + childTd.getFieldName(g);
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
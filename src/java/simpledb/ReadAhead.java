@@ -0,0 +1,53 @@
+package simpledb;
+
+/**
+ * Sequential read-ahead for a single scan over a HeapFile. The scan reports
+ * each page it moves to; as long as the pages arrive in order, ReadAhead
+ * keeps a window of the following pages requested from the BufferPool, so
+ * they are read by the pool's background I/O threads while the scan is busy
+ * with the current one.
+ * <p>
+ * The window starts small and doubles, up to the pool's read-ahead limit,
+ * whenever the scan catches up with a page that has been requested but is
+ * not resident yet, i.e. whenever the scan is faster than the prefetching.
+ * Any out of order access resets it.
+ */
+class ReadAhead {
+    static final int INITIAL_WINDOW = BufferPool.MIN_READ_AHEAD;
+
+    private final int tableId;
+    private int lastPage = -1;
+    /** Highest page number requested so far. */
+    private int frontier = -1;
+    private int window = INITIAL_WINDOW;
+
+    public ReadAhead(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /**
+     * Called before the scan reads pageNo.
+     *
+     * @param pageNo the page the scan is about to read
+     * @param numPages the number of pages in the file
+     */
+    public void advance(int pageNo, int numPages) {
+        BufferPool bp = Database.getBufferPool();
+        int limit = bp.getReadAheadLimit();
+        boolean sequential = pageNo == lastPage + 1;
+        lastPage = pageNo;
+        if (!sequential || limit <= 0) {
+            frontier = pageNo;
+            window = INITIAL_WINDOW;
+            return;
+        }
+        if (pageNo <= frontier && !bp.isResident(new HeapPageId(tableId, pageNo)))
+            window = Math.min(window * 2, limit);
+        if (pageNo < frontier - window / 2)
+            return;
+        int last = Math.min(pageNo + window, numPages - 1);
+        for (int p = Math.max(frontier + 1, pageNo + 1); p <= last; p++)
+            bp.prefetchPage(new HeapPageId(tableId, p));
+        frontier = Math.max(frontier, last);
+    }
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * ReplacementPolicy decides which BufferPool frame to give up when the pool
+ * is full. The BufferPool keeps its pages in a fixed array of numPages
+ * frames, and reports every load, hit and removal to the policy by frame
+ * index; the policy answers {@link #victim} with the frame to evict.
+ * <p>
+ * Implementations keep their bookkeeping in arrays sized to the number of
+ * frames, so the cost of a hit or an eviction does not depend on how many
+ * times pages have been accessed. Calls are serialized by the BufferPool,
+ * except for {@link #pageAccessed}: hits are reported without any lock, so
+ * that concurrent readers of resident pages do not contend, and may run
+ * at the same time as any other call.
+ *
+ * @see BufferPool
+ * @see ClockReplacementPolicy
+ * @see LruKReplacementPolicy
+ * @see TwoQReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called after the page with id pid has been read into frame.
+     *
+     * @param frame the frame the page was placed in
+     * @param pid the id of the page now held by the frame
+     */
+    public void pageLoaded(int frame, PageId pid);
+
+    /**
+     * Called when a page that is already resident in frame is requested.
+     * Unlike the other calls this one is not serialized; policies that
+     * cannot note a hit atomically record it in an {@link AccessBuffer}
+     * and apply it when they next pick a victim.
+     *
+     * @param frame the frame that was hit
+     */
+    public void pageAccessed(int frame);
+
+    /**
+     * Called when the BufferPool empties a frame on its own (e.g. in
+     * {@link BufferPool#discardPage}), so the policy should forget about it.
+     *
+     * @param frame the frame that no longer holds a page
+     */
+    public void frameFreed(int frame);
+
+    /**
+     * Marks a frame as (not) evictable. The BufferPool withdraws a frame
+     * while some caller holds it pinned, and restores it once the last pin
+     * is released. Frames the policy is not tracking are ignored.
+     *
+     * @param frame the frame whose state changed
+     * @param evictable false while the frame is pinned
+     */
+    public void setEvictable(int frame, boolean evictable);
+
+    /**
+     * Chooses an evictable frame to evict and forgets about it. The
+     * BufferPool is responsible for flushing and clearing the frame.
+     *
+     * @return the frame to evict, or -1 if no frame can be evicted
+     */
+    public int victim();
+}
+
+/**
+ * An intrusive doubly linked list over frame indexes, backed by flat arrays so
+ * that adding, removing and moving a frame are all constant time. Used by the
+ * list based replacement policies.
+ */
+class FrameList {
+    private static final int NONE = -1;
+
+    private final int[] prev;
+    private final int[] next;
+    private final boolean[] member;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size = 0;
+
+    public FrameList(int numFrames) {
+        this.prev = new int[numFrames];
+        this.next = new int[numFrames];
+        this.member = new boolean[numFrames];
+    }
+
+    public boolean contains(int frame) {
+        return member[frame];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Append frame at the tail (most recently used end) of the list. */
+    public void addLast(int frame) {
+        if (member[frame])
+            remove(frame);
+        prev[frame] = tail;
+        next[frame] = NONE;
+        if (tail == NONE)
+            head = frame;
+        else
+            next[tail] = frame;
+        tail = frame;
+        member[frame] = true;
+        size++;
+    }
+
+    /** Unlink frame from the list; does nothing if it is not a member. */
+    public void remove(int frame) {
+        if (!member[frame])
+            return;
+        if (prev[frame] == NONE)
+            head = next[frame];
+        else
+            next[prev[frame]] = next[frame];
+        if (next[frame] == NONE)
+            tail = prev[frame];
+        else
+            prev[next[frame]] = prev[frame];
+        member[frame] = false;
+        size--;
+    }
+
+    /** @return the frame at the head of the list, or -1 if it is empty */
+    public int peekFirst() {
+        return head;
+    }
+
+    /** Remove and return the frame at the head of the list, or -1 if empty. */
+    public int pollFirst() {
+        int frame = head;
+        if (frame != NONE)
+            remove(frame);
+        return frame;
+    }
+}
+
+/**
+ * A lossy, lock-free log of recent hits, for policies whose bookkeeping
+ * cannot be updated without holding the BufferPool's lock. Hits are
+ * appended without blocking and replayed in order, under the lock, by
+ * {@link #drain}. If more hits arrive between two drains than the buffer
+ * holds, the oldest are lost; hits only guide the choice of victim, so
+ * losing a few is harmless.
+ */
+class AccessBuffer {
+    private static final int EMPTY = -1;
+
+    private final AtomicIntegerArray slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /** The first slot not yet drained; only touched by drain. */
+    private long head = 0;
+
+    public AccessBuffer(int numFrames) {
+        int capacity = Integer.highestOneBit(Math.max(16, 2 * numFrames) - 1) << 1;
+        this.slots = new AtomicIntegerArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+            slots.set(i, EMPTY);
+    }
+
+    /** Notes a hit on frame; safe to call from any thread. */
+    public void record(int frame) {
+        slots.set((int) (tail.getAndIncrement() & mask), frame);
+    }
+
+    /**
+     * Passes every hit recorded since the last drain to hit, oldest first.
+     * Callers must serialize drains.
+     */
+    public void drain(IntConsumer hit) {
+        long end = tail.get();
+        for (long i = Math.max(head, end - slots.length()); i < end; i++) {
+            int frame = slots.getAndSet((int) (i & mask), EMPTY);
+            if (frame != EMPTY)
+                hit.accept(frame);
+        }
+        head = end;
+    }
+}
@@ -11,11 +11,15 @@ public class SeqScan implements OpIterator {
 
     private static final long serialVersionUID = 1L;
 
+    private static int parallelism = 1;
+
     TransactionId tid;
     int tableid;
     String tableAlias;
     DbFileIterator dbfileiterator;
     DbFile dbfile;
+    private Predicate predicate;
+    private transient TupleBatch batch;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -38,7 +42,35 @@ public class SeqScan implements OpIterator {
         this.tableid = tableid;
         this.tableAlias = tableAlias;
         this.dbfile = Database.getCatalog().getDatabaseFile(this.tableid);
-        this.dbfileiterator = this.dbfile.iterator(this.tid);
+        this.dbfileiterator = createIterator();
+    }
+
+    /**
+     * @return the number of threads that scans of heap files created from
+     *         now on read their file with
+     */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads that scans of heap files created from now
+     * on read their file with. With more than one, the file is read by a
+     * ParallelHeapFileIterator and tuples are no longer returned in the
+     * order of the file's pages.
+     */
+    public static void setParallelism(int threads) {
+        parallelism = Math.max(1, threads);
+    }
+
+    private DbFileIterator createIterator() {
+        if (!(this.dbfile instanceof HeapFile))
+            return this.dbfile.iterator(this.tid);
+        HeapFile f = (HeapFile) this.dbfile;
+        if (parallelism > 1)
+            return new ParallelHeapFileIterator(f, this.tid, this.predicate, parallelism,
+                    getTupleDesc());
+        return f.iterator(this.tid, this.predicate);
     }
 
     /**
@@ -73,6 +105,29 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.batch = null;
+        if (this.dbfileiterator instanceof ParallelHeapFileIterator) {
+            // its batches carry the field names
+            this.dbfileiterator.close();
+            this.dbfileiterator = createIterator();
+        }
+    }
+
+    /**
+     * Asks the scan to return only the tuples that satisfy p. This is only
+     * possible for heap files, whose pages can test p on their serialized
+     * tuples; it must be called before the scan is opened.
+     *
+     * @return true if the scan now applies p itself, false if the caller
+     *         still has to filter its output
+     */
+    public boolean pushPredicate(Predicate p) {
+        if (!(this.dbfile instanceof HeapFile))
+            return false;
+        this.dbfileiterator.close();
+        this.predicate = p;
+        this.dbfileiterator = createIterator();
+        return true;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -124,6 +179,29 @@ public class SeqScan implements OpIterator {
         return(this.dbfileiterator.next());
     }
 
+    /**
+     * Heap file pages are copied straight into the batch's column vectors,
+     * without creating a Tuple per row; other files are read tuple by tuple.
+     * The same batch is reused by every call, except in a parallel scan,
+     * which returns the batches its workers filled.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (this.dbfileiterator instanceof ParallelHeapFileIterator)
+            return ((ParallelHeapFileIterator) this.dbfileiterator).nextBatch();
+        if (!(this.dbfileiterator instanceof HeapFileIterator))
+            return OpIterator.super.nextBatch();
+        if (this.batch == null)
+            this.batch = new TupleBatch(getTupleDesc());
+        this.batch.clear();
+        ((HeapFileIterator) this.dbfileiterator).readBatch(this.batch);
+        return this.batch.numRows() == 0 ? null : this.batch;
+    }
+
+    /** @return false for a parallel scan, whose batches are not reused */
+    public boolean reusesBatches() {
+        return !(this.dbfileiterator instanceof ParallelHeapFileIterator);
+    }
+
     public void close() {
         this.dbfileiterator.close();
     }
@@ -0,0 +1,365 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two children that are both sorted in ascending order
+ * on their join fields, reading each of them once.
+ * <p>
+ * For EQUALS, the rows of child2 that share a key are buffered and joined
+ * with each row of child1 with that key. For an inequality, one side drives
+ * the join and the rows of the other side that satisfy the predicate for
+ * the current driving row form a prefix of that side, which only grows as
+ * the driving key grows: for GREATER_THAN(_OR_EQ) child1 drives and the
+ * child2 rows with smaller keys are buffered, for LESS_THAN(_OR_EQ) child2
+ * drives and the child1 rows with smaller keys are buffered. Either way no
+ * input is rescanned and no join predicate is evaluated per output row;
+ * NOT_EQUALS and LIKE are not supported.
+ * <p>
+ * Use {@link #isSortedOn} to check whether a child is known to be sorted.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate jp;
+    private OpIterator child1;
+    private OpIterator child2;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be EQUALS or one of the inequalities
+     * @param child1
+     *            Iterator for the left relation, sorted in ascending order
+     *            on the first field of p
+     * @param child2
+     *            Iterator for the right relation, sorted in ascending order
+     *            on the second field of p
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("merge join does not support " + p.getOperator());
+        this.jp = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if a SortMergeJoin can evaluate join predicates with op
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * Returns true if the tuples of it are known to come out in ascending
+     * order of the given field: base on the scans of B+ trees on their key
+     * field, ascending OrderBys, and the operators that keep the order of
+     * their child.
+     */
+    public static boolean isSortedOn(OpIterator it, int field) {
+        if (it instanceof SeqScan) {
+            // a B+ tree file is scanned leaf by leaf, in key order
+            DbFile f = ((SeqScan) it).dbfile;
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        }
+        if (it instanceof BTreeScan) {
+            int tableid = Database.getCatalog().getTableId(((BTreeScan) it).getTableName());
+            return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField() == field;
+        }
+        if (it instanceof OrderBy)
+            return ((OrderBy) it).isASC() && ((OrderBy) it).getOrderByField() == field;
+        if (it instanceof Filter)
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            int field2 = j.child1.getTupleDesc().numFields() + j.jp.getField2();
+            switch (j.jp.getOperator()) {
+            case EQUALS:
+                return field == j.jp.getField1() || field == field2;
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return field == j.jp.getField1();
+            default:
+                return field == field2;
+            }
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return jp;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(jp.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(jp.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        child2.open();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    /** A position in the output of a child, read a batch at a time. */
+    private static class Cursor {
+        final OpIterator child;
+        final int field;
+        TupleBatch batch;
+        int pos;
+        boolean done;
+
+        Cursor(OpIterator child, int field) {
+            this.child = child;
+            this.field = field;
+        }
+
+        /** @return false once the child is exhausted */
+        boolean valid() throws DbException, TransactionAbortedException {
+            while (!done && (batch == null || pos >= batch.numSelected())) {
+                batch = child.nextBatch();
+                pos = 0;
+                done = batch == null;
+            }
+            return !done;
+        }
+
+        int row() {
+            return batch.getSelected(pos);
+        }
+    }
+
+    // the state of the join
+    transient private Cursor left, right;
+    /** The buffered rows of child2 (EQUALS) or of the driven side. */
+    transient private TupleBatch group;
+    transient private int groupPos;
+    /** True while the current driving row is being joined with group. */
+    transient private boolean active;
+    transient private TupleBatch out;
+    /** The output batch being handed out by fetchNext. */
+    transient private TupleBatch pending;
+    transient private int pendingPos;
+
+    private void reset() {
+        left = null;
+        right = null;
+        group = null;
+        out = null;
+        pending = null;
+        active = false;
+    }
+
+    /**
+     * Compares the join field of the current row of a with that of row brow
+     * of b, without creating any Fields.
+     */
+    private static int compare(Cursor a, TupleBatch b, int brow, int bfield) {
+        if (a.batch.getTupleDesc().getFieldType(a.field) == Type.INT_TYPE)
+            return Integer.compare(a.batch.getInt(a.field, a.row()), b.getInt(bfield, brow));
+        return a.batch.getString(a.field, a.row()).compareTo(b.getString(bfield, brow));
+    }
+
+    /** Appends the current row of c to group. */
+    private void buffer(Cursor c) {
+        group.copyFields(group.addRow(), 0, c.batch, c.row());
+        c.pos++;
+    }
+
+    /**
+     * Appends the joins of the current row of d with the rows of group from
+     * groupPos on to out, until either runs out.
+     *
+     * @param dLeft
+     *            true if d's row goes first in the output
+     */
+    private void emit(Cursor d, boolean dLeft) {
+        int td1n = child1.getTupleDesc().numFields();
+        while (groupPos < group.numRows() && !out.isFull()) {
+            int row = out.addRow();
+            if (dLeft) {
+                out.copyFields(row, 0, d.batch, d.row());
+                out.copyFields(row, td1n, group, groupPos++);
+            } else {
+                out.copyFields(row, 0, group, groupPos++);
+                out.copyFields(row, td1n, d.batch, d.row());
+            }
+        }
+        if (groupPos == group.numRows()) {
+            active = false;
+            d.pos++;
+        }
+    }
+
+    /** Merges the children for EQUALS. */
+    private void mergeEquals() throws DbException, TransactionAbortedException {
+        while (!out.isFull()) {
+            if (active) {
+                emit(left, true);
+                continue;
+            }
+            if (!left.valid())
+                return;
+            if (group.numRows() > 0 && compare(left, group, 0, right.field) == 0) {
+                // the next row of child1 has the same key as the last one
+                groupPos = 0;
+                active = true;
+                continue;
+            }
+            if (!right.valid())
+                return;
+            int c = compare(left, right.batch, right.row(), right.field);
+            if (c < 0) {
+                left.pos++;
+            } else if (c > 0) {
+                right.pos++;
+            } else {
+                group.clear();
+                do {
+                    buffer(right);
+                } while (right.valid()
+                        && compare(left, right.batch, right.row(), right.field) == 0);
+                groupPos = 0;
+                active = true;
+            }
+        }
+    }
+
+    /**
+     * Merges the children for an inequality: the rows of g that the
+     * current row of d admits are added to group, and d's row is joined
+     * with all of them.
+     *
+     * @param strict
+     *            true if g's key must be smaller than d's, false if it may
+     *            also be equal
+     */
+    private void mergeRange(Cursor d, Cursor g, boolean strict)
+            throws DbException, TransactionAbortedException {
+        boolean dLeft = d == left;
+        while (!out.isFull()) {
+            if (active) {
+                emit(d, dLeft);
+                continue;
+            }
+            if (!d.valid())
+                return;
+            while (g.valid()) {
+                int c = compare(d, g.batch, g.row(), g.field);
+                if (strict ? c <= 0 : c < 0)
+                    break;
+                buffer(g);
+            }
+            if (group.numRows() == 0) {
+                d.pos++;
+            } else {
+                groupPos = 0;
+                active = true;
+            }
+        }
+    }
+
+    /**
+     * @return the next batch of output rows, or null if there are no more
+     */
+    private TupleBatch fillBatch() throws DbException, TransactionAbortedException {
+        if (out == null) {
+            left = new Cursor(child1, jp.getField1());
+            right = new Cursor(child2, jp.getField2());
+            out = new TupleBatch(getTupleDesc());
+        }
+        out.clear();
+        switch (jp.getOperator()) {
+        case EQUALS:
+            if (group == null)
+                group = new TupleBatch(child2.getTupleDesc());
+            mergeEquals();
+            break;
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            if (group == null)
+                group = new TupleBatch(child2.getTupleDesc());
+            mergeRange(left, right, jp.getOperator() == Predicate.Op.GREATER_THAN);
+            break;
+        default:
+            if (group == null)
+                group = new TupleBatch(child1.getTupleDesc());
+            mergeRange(right, left, jp.getOperator() == Predicate.Op.LESS_THAN);
+            break;
+        }
+        return out.numRows() == 0 ? null : out;
+    }
+
+    /**
+     * Batch implementation: joined rows are copied column by column into an
+     * output batch, which is reused by every call.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        checkOpen();
+        return fillBatch();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with Join, output tuples are the concatenation of the
+     * joining tuples of child1 and child2.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pending == null || pendingPos >= pending.numSelected()) {
+            pending = fillBatch();
+            pendingPos = 0;
+            if (pending == null)
+                return null;
+        }
+        return pending.getTuple(pending.getSelected(pendingPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+}
@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file of tuples, for operators whose state does not fit in
+ * memory. Tuples are appended with add and read back, in the same order,
+ * through the OpIterator returned by iterator. Strings are written without
+ * their padding to Type.STRING_LEN. The file is deleted by delete, or when
+ * the JVM exits.
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Creates an empty spill file for tuples with schema td.
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            this.file = File.createTempFile("simpledb", ".spill");
+            this.file.deleteOnExit();
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of tuples added so far
+     */
+    public int size() {
+        return numTuples;
+    }
+
+    /**
+     * Appends t to the file.
+     */
+    public void add(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    out.writeInt(t.getInt(i));
+                else
+                    out.writeUTF(t.getString(i));
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        numTuples++;
+    }
+
+    /**
+     * Appends row of batch to the file.
+     */
+    public void add(TupleBatch batch, int row) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    out.writeInt(batch.getInt(i, row));
+                else
+                    out.writeUTF(batch.getString(i, row));
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        numTuples++;
+    }
+
+    /**
+     * Returns an iterator over the tuples added so far. No more tuples can
+     * be added once it has been called.
+     */
+    public OpIterator iterator() throws DbException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("could not write spill file: " + e.getMessage());
+            }
+            out = null;
+        }
+        return new Reader();
+    }
+
+    /**
+     * Removes the file from disk.
+     */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is going away anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    private class Reader implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in;
+        private transient TupleBatch batch;
+        private int read;
+
+        public void open() throws DbException {
+            close();
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            if (in == null)
+                throw new IllegalStateException("iterator not open");
+            return read < numTuples;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        t.setField(i, new IntField(in.readInt()));
+                    else
+                        t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        /** Reads the fields straight into the batch's column vectors. */
+        public TupleBatch nextBatch() throws DbException {
+            if (!hasNext())
+                return null;
+            if (batch == null)
+                batch = new TupleBatch(td);
+            batch.clear();
+            try {
+                while (!batch.isFull() && read < numTuples) {
+                    int row = batch.addRow();
+                    for (int i = 0; i < td.numFields(); i++) {
+                        if (td.getFieldType(i) == Type.INT_TYPE)
+                            batch.setInt(i, row, in.readInt());
+                        else
+                            batch.setString(i, row, in.readUTF());
+                    }
+                    read++;
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            return batch;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -4,182 +4,102 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * <p>
+ * Each group keeps its running count, min and max, and groups past the
+ * memory budget are spilled, see {@link HashAggregator}.
  */
-public class StringAggregator implements Aggregator {
+public class StringAggregator extends HashAggregator<StringAggregator.Accumulator> {
 
     private static final long serialVersionUID = 1L;
 
+    private final int afield;
+    private final Op what;
+
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
      * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null if there is no grouping
      * @param afield the 0-based index of the aggregate field in the tuple
-     * @param what aggregation operator to use -- only supports COUNT
-     * @throws IllegalArgumentException if what != COUNT
+     * @param what aggregation operator to use -- only supports COUNT, MIN and MAX
      */
-
-    private int gbfield;
-    private Type gbfieldType;
-    private int afield;
-    private Op what;
-    private HashMap<Object, ArrayList<String>> agg;
-
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        // some code goes here
-        this.gbfield = gbfield;
-        this.gbfieldType = gbfieldtype;
-        this.afield = afield;
-        this.what = what;
-        this.agg = new HashMap<Object, ArrayList<String>>();
+        this(gbfield, gbfieldtype, afield, what, Integer.MAX_VALUE);
     }
 
     /**
-     * Merge a new tuple into the aggregate, grouping as indicated in the constructor
-     * @param tup the Tuple containing an aggregate field and a group-by field
+     * Creates an aggregator that keeps at most maxGroups groups in memory.
+     *
+     * @param maxGroups the memory budget, in groups
      */
-    public void mergeTupleIntoGroup(Tuple tup) {
-        // some code goes here
-        Field tupGBField = null;
-
-        if(gbfield==Aggregator.NO_GROUPING){
-            if(!agg.containsKey("")){
-                agg.put("",new ArrayList<>());
-            }
-            agg.get("").add(((StringField) tup.getField(afield)).getValue());
-             //IS THIS CORRECT AS WELL????
-        } else {tupGBField = tup.getField(gbfield);} //get the field from the index
-
-        if(gbfieldType == Type.INT_TYPE){
-            Integer groupKey = ((IntField) tupGBField).getValue();
-            if(!agg.containsKey(groupKey)){
-                agg.put(groupKey, new ArrayList<>());
-            }
-            String value = ((StringField) tup.getField(afield)).getValue();
-            agg.get(groupKey).add(value);
-
-        } else{
-            String groupKey = ((StringField) tupGBField).getValue();
-            if(!agg.containsKey(groupKey)){
-                agg.put(groupKey, new ArrayList<>());
-            }
-            String value = ((StringField) tup.getField(afield)).getValue();
-            agg.get(groupKey).add(value);
-        }
+    public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int maxGroups) {
+        this(groupFields(gbfield), groupFieldTypes(gbfield, gbfieldtype), afield, what, maxGroups);
     }
 
     /**
-     * Create a OpIterator over group aggregate results.
-     *
-     * @return a OpIterator whose tuples are the pair (groupVal,
-     *   aggregateVal) if using group, or a single (aggregateVal) if no
-     *   grouping. The aggregateVal is determined by the type of
-     *   aggregate specified in the constructor.
+     * Creates an aggregator that groups on several fields.
      */
-    public OpIterator iterator() {
-        // some code goes here
-        return new StringIter();
-//        throw new UnsupportedOperationException("please implement me for lab2");
+    StringAggregator(int[] gbfields, Type[] gbfieldtypes, int afield, Op what, int maxGroups) {
+        super(gbfields, gbfieldtypes, maxGroups);
+        this.afield = afield;
+        this.what = what;
     }
 
-    private class StringIter implements OpIterator{
-        private ArrayList<Tuple> ret = new ArrayList<Tuple>();
-        private Iterator<Tuple> it;
-
-        public StringIter(){
-            for(Map.Entry<Object, ArrayList<String>> i : agg.entrySet()){
-                Tuple entryTup = new Tuple(this.getTupleDesc());
-                int val = 0;
-                ArrayList<String> curr = i.getValue();
-                String retStr = "";
-                switch(what){
-                    case MIN:
-                        retStr = curr.get(0);
-                        for(String compareVal : curr){
-                            if(retStr.compareTo(compareVal)>0){
-                                retStr = compareVal;
-                            }
-                        }
-                        break;
-                    case MAX:
-                        retStr = curr.get(0);
-                        for(String compareVal: curr){
-                            if(retStr.compareTo(compareVal)<0){
-                                retStr = compareVal;
-                            }
-                        }
-                        break;
-                    case SUM:
-                        break;
-                    case AVG:
-                        break;
-                    case COUNT:
-                        val = i.getValue().size();
-                        break;
-                    case SUM_COUNT:
-                        break;
-                    case SC_AVG:
-                        break;
-                }
-
-                if(gbfieldType == null){
-                    if(what== Op.COUNT){
-                        entryTup.setField(0,new IntField(val));
-                    } else{
-                        entryTup.setField(0,new StringField(retStr, retStr.length()));
-                    }
-                } else {
-                    if (gbfieldType == Type.INT_TYPE) {
-                        entryTup.setField(0, new IntField((Integer) i.getKey()));
-                    } else {
-                        entryTup.setField(0, new StringField((String) i.getKey(), i.getKey().toString().length()));
-                    }
-                    if (what == Op.COUNT) {
-                        entryTup.setField(1, new IntField(val));
-                    } else {
-                        entryTup.setField(1, new StringField(retStr, retStr.length()));
-                    }
-                }
-                ret.add(entryTup);
-            }
+    /**
+     * The running state of one group's aggregate.
+     */
+    static final class Accumulator {
+        int count;
+        String min;
+        String max;
+
+        void add(String v) {
+            count++;
+            if (min == null || v.compareTo(min) < 0)
+                min = v;
+            if (max == null || v.compareTo(max) > 0)
+                max = v;
         }
 
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            it = ret.iterator();
+        void merge(Accumulator other) {
+            count += other.count;
+            if (other.min != null && (min == null || other.min.compareTo(min) < 0))
+                min = other.min;
+            if (other.max != null && (max == null || other.max.compareTo(max) > 0))
+                max = other.max;
         }
+    }
 
-        @Override
-        public boolean hasNext() throws DbException, TransactionAbortedException {
-            return it.hasNext();
-        }
+    Accumulator newState() {
+        return new Accumulator();
+    }
 
-        @Override
-        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            return it.next();
-        }
+    void add(Accumulator acc, Tuple t) {
+        acc.add(t.getString(afield));
+    }
 
-        @Override
-        public void rewind() throws DbException, TransactionAbortedException {
-            it = ret.iterator();
-        }
+    void add(Accumulator acc, TupleBatch batch, int row) {
+        acc.add(batch.getString(afield, row));
+    }
 
-        @Override
-        public TupleDesc getTupleDesc() {
-            if(gbfield == Aggregator.NO_GROUPING){
-                if(what!= Op.COUNT){
-                    return new TupleDesc(new Type[]{Type.STRING_TYPE});
-                } else {return new TupleDesc(new Type[]{Type.INT_TYPE});}
-            } else {
-                if(what!= Op.COUNT){
-                    return new TupleDesc(new Type[]{gbfieldType,Type.STRING_TYPE});
-                } else {return new TupleDesc(new Type[]{gbfieldType, Type.INT_TYPE});}
-            }
-        }
+    void combine(Accumulator acc, Accumulator other) {
+        acc.merge(other);
+    }
+
+    /** COUNT is an INT_TYPE field, MIN and MAX are strings. */
+    List<Type> resultTypes() {
+        return Arrays.asList(what == Op.COUNT ? Type.INT_TYPE : Type.STRING_TYPE);
+    }
 
-        @Override
-        public void close() {
-            it = null;
+    void setResult(Tuple t, int i, Accumulator acc) {
+        if (what == Op.COUNT) {
+            t.setField(i, new IntField(acc.count));
+        } else {
+            String s = what == Op.MIN ? acc.min : acc.max;
+            t.setField(i, new StringField(s, s.length()));
         }
     }
+
+    StringAggregator create() {
+        return new StringAggregator(gbfields, gbfieldtypes, afield, what, Integer.MAX_VALUE);
+    }
 }
@@ -77,8 +77,24 @@ public class StringField implements Field {
 	public boolean compare(Predicate.Op op, Field val) {
 
 		StringField iVal = (StringField) val;
-		int cmpVal = value.compareTo(iVal.value);
+		return compare(value, op, iVal.value);
+	}
+
+	/**
+	 * Compares two strings with the semantics of {@link #compare(Predicate.Op, Field)},
+	 * for callers that have not wrapped them in StringFields.
+	 */
+	static boolean compare(String value, Predicate.Op op, String other) {
+		if (op == Predicate.Op.LIKE)
+			return value.indexOf(other) >= 0;
+		return compare(value.compareTo(other), op);
+	}
 
+	/**
+	 * @return whether a comparison whose {@link String#compareTo} result is
+	 *         cmpVal satisfies op, which must not be LIKE
+	 */
+	static boolean compare(int cmpVal, Predicate.Op op) {
 		switch (op) {
 		case EQUALS:
 			return cmpVal == 0;
@@ -97,9 +113,6 @@ public class StringField implements Field {
 
 		case LESS_THAN_OR_EQ:
 			return cmpVal <= 0;
-
-		case LIKE:
-			return value.indexOf(iVal.value) >= 0;
 		}
 
 		return false;
@@ -14,6 +14,7 @@ public class Tuple implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private TupleDesc tuple_desc;
+    /** Allocated by the first setField, so subclasses may do without it. */
     private Field[] tuple_fields;
     private RecordId rid;
 
@@ -29,7 +30,6 @@ public class Tuple implements Serializable {
             throw new IllegalArgumentException("Incorrect schema or field count for tuple");
         }
         this.tuple_desc = td;
-        this.tuple_fields = new Field[td.numFields()];
     }
 
     /**
@@ -66,9 +66,11 @@ public class Tuple implements Serializable {
      *            new value for the field.
      */
     public void setField(int i, Field f) {
-        if ( i >= tuple_fields.length || i < 0){
+        if ( i >= tuple_desc.numFields() || i < 0){
             throw new IllegalArgumentException("Invalid index");
         }
+        if (tuple_fields == null)
+            tuple_fields = new Field[tuple_desc.numFields()];
         tuple_fields[i] = f;
     }
 
@@ -79,12 +81,38 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
-        if ( i >= tuple_fields.length || i < 0){
+        if ( i >= tuple_desc.numFields() || i < 0){
             throw new IllegalArgumentException("Invalid index");
         }
+        if (tuple_fields == null)
+            return null;
         return(tuple_fields[i]); //Default null for object array.
     }
 
+    /**
+     * @return the value of the ith field, which must be an INT_TYPE field
+     *         that has been set. Subclasses that store values in primitive
+     *         form return it without creating an IntField.
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public int getInt(int i) {
+        return ((IntField) getField(i)).getValue();
+    }
+
+    /**
+     * @return the value of the ith field, which must be a STRING_TYPE field
+     *         that has been set. Subclasses that store values in serialized
+     *         form return it without creating a StringField.
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public String getString(int i) {
+        return ((StringField) getField(i)).getValue();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -95,11 +123,12 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         String str = "";
-        for(int i = 0 ; i < tuple_fields.length-1; i ++){
-            str += tuple_fields[i];
+        int n = tuple_desc.numFields();
+        for(int i = 0 ; i < n-1; i ++){
+            str += getField(i);
             str += "\t";
         }
-        str += tuple_fields[tuple_fields.length-1];
+        str += getField(n-1);
         return(str);
     }
 
@@ -109,8 +138,11 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
-        // fields are reference type so we get list iterator.
-        Iterator<Field> it = Arrays.asList(tuple_fields).iterator();
+        // go through getField so that subclasses may produce fields lazily
+        Field[] fields = new Field[tuple_desc.numFields()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = getField(i);
+        Iterator<Field> it = Arrays.asList(fields).iterator();
         return(it);
     }
 
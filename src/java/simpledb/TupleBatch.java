@@ -0,0 +1,347 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TupleBatch holds a block of rows in columnar form, for operators that
+ * process many tuples per call instead of one (see
+ * {@link OpIterator#nextBatch}). Each INT_TYPE column is stored as an int[]
+ * and each STRING_TYPE column as a String[], so reading a value allocates
+ * nothing.
+ * <p>
+ * Rows are addressed by their index in the column vectors. Which rows are
+ * part of the batch is given by the selection vector: a filter drops rows by
+ * narrowing the selection, without moving any column data. Consumers should
+ * only look at the selected rows, i.e. getSelected(0) ..
+ * getSelected(numSelected() - 1).
+ */
+public class TupleBatch {
+
+    /** The number of rows operators put in a batch. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    /** int[] or String[] per field, depending on the field's type. */
+    private Object[] columns;
+    private RecordId[] recordIds;
+    private int[] selection;
+    private int capacity;
+    private int numRows = 0;
+    private int numSelected = 0;
+
+    /**
+     * Creates an empty batch of DEFAULT_SIZE rows.
+     *
+     * @param td the schema of the rows in the batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param td the schema of the rows in the batch
+     * @param capacity the number of rows after which the batch is full
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = Math.max(1, capacity);
+        this.columns = new Object[td.numFields()];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = newColumn(td.getFieldType(i), this.capacity);
+        this.recordIds = new RecordId[this.capacity];
+        this.selection = new int[this.capacity];
+    }
+
+    /** Creates a batch that shares the given vectors, see {@link #project}. */
+    private TupleBatch(TupleDesc td, Object[] columns, TupleBatch rows) {
+        this.td = td;
+        this.columns = columns;
+        this.recordIds = rows.recordIds;
+        this.selection = rows.selection;
+        this.capacity = rows.capacity;
+        this.numRows = rows.numRows;
+        this.numSelected = rows.numSelected;
+    }
+
+    private static Object newColumn(Type t, int size) {
+        return t == Type.INT_TYPE ? new int[size] : new String[size];
+    }
+
+    /**
+     * Reads up to DEFAULT_SIZE tuples from it into a new batch. This is how
+     * operators without a batch implementation of their own take part in
+     * batch execution.
+     *
+     * @return the batch, or null if it has no more tuples
+     */
+    public static TupleBatch read(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        TupleBatch batch = null;
+        while (it.hasNext()) {
+            if (batch == null)
+                batch = new TupleBatch(it.getTupleDesc());
+            batch.addTuple(it.next());
+            if (batch.isFull())
+                break;
+        }
+        return batch;
+    }
+
+    /**
+     * @return the schema of the rows in this batch
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows stored, selected or not
+     */
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * @return the number of rows in the selection
+     */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /**
+     * @return the index of the i-th selected row
+     */
+    public int getSelected(int i) {
+        return selection[i];
+    }
+
+    /**
+     * @return true if no more rows should be added to this batch
+     */
+    public boolean isFull() {
+        return numRows >= capacity;
+    }
+
+    /**
+     * Removes all rows, so that the batch can be filled again.
+     */
+    public void clear() {
+        numRows = 0;
+        numSelected = 0;
+    }
+
+    /**
+     * Adds an empty, selected row at the end of the batch; its values are
+     * filled in with the setters. A full batch grows to make room.
+     *
+     * @return the index of the new row
+     */
+    public int addRow() {
+        if (numRows == capacity)
+            grow();
+        int row = numRows++;
+        recordIds[row] = null;
+        selection[numSelected++] = row;
+        return row;
+    }
+
+    private void grow() {
+        int n = capacity * 2;
+        for (int i = 0; i < columns.length; i++) {
+            Object col = columns[i];
+            if (col instanceof int[])
+                columns[i] = Arrays.copyOf((int[]) col, n);
+            else
+                columns[i] = Arrays.copyOf((String[]) col, n);
+        }
+        recordIds = Arrays.copyOf(recordIds, n);
+        selection = Arrays.copyOf(selection, n);
+        capacity = n;
+    }
+
+    /**
+     * Adds the values of t as a new row.
+     *
+     * @return the index of the new row
+     */
+    public int addTuple(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < columns.length; i++) {
+            Field f = t.getField(i);
+            if (columns[i] instanceof int[])
+                ((int[]) columns[i])[row] = ((IntField) f).getValue();
+            else
+                ((String[]) columns[i])[row] = ((StringField) f).getValue();
+        }
+        recordIds[row] = t.getRecordId();
+        return row;
+    }
+
+    /**
+     * Copies the fields of row srcRow of src into this batch, starting at
+     * field offset. Used to concatenate rows, e.g. by joins.
+     */
+    public void copyFields(int row, int offset, TupleBatch src, int srcRow) {
+        for (int i = 0; i < src.columns.length; i++) {
+            Object from = src.columns[i];
+            if (from instanceof int[])
+                ((int[]) columns[offset + i])[row] = ((int[]) from)[srcRow];
+            else
+                ((String[]) columns[offset + i])[row] = ((String[]) from)[srcRow];
+        }
+    }
+
+    /**
+     * @return a new batch holding copies of the selected rows, e.g. to keep
+     *         them after the operator that returned this batch reuses it
+     */
+    public TupleBatch copy() {
+        TupleBatch copy = new TupleBatch(td, numSelected);
+        for (int i = 0; i < numSelected; i++) {
+            int row = selection[i];
+            int r = copy.addRow();
+            copy.copyFields(r, 0, this, row);
+            copy.recordIds[r] = recordIds[row];
+        }
+        return copy;
+    }
+
+    /**
+     * @return the values of INT_TYPE field i, indexed by row
+     */
+    public int[] getIntColumn(int i) {
+        return (int[]) columns[i];
+    }
+
+    /**
+     * @return the values of STRING_TYPE field i, indexed by row
+     */
+    public String[] getStringColumn(int i) {
+        return (String[]) columns[i];
+    }
+
+    public int getInt(int i, int row) {
+        return ((int[]) columns[i])[row];
+    }
+
+    public String getString(int i, int row) {
+        return ((String[]) columns[i])[row];
+    }
+
+    public void setInt(int i, int row, int value) {
+        ((int[]) columns[i])[row] = value;
+    }
+
+    public void setString(int i, int row, String value) {
+        ((String[]) columns[i])[row] = value;
+    }
+
+    /**
+     * @return the value of field i of row as a boxed key, e.g. for hashing
+     */
+    public Object getValue(int i, int row) {
+        Object col = columns[i];
+        if (col instanceof int[])
+            return ((int[]) col)[row];
+        return ((String[]) col)[row];
+    }
+
+    /**
+     * @return field i of row as a Field
+     */
+    public Field getField(int i, int row) {
+        Object col = columns[i];
+        if (col instanceof int[])
+            return new IntField(((int[]) col)[row]);
+        return new StringField(((String[]) col)[row], Type.STRING_LEN);
+    }
+
+    public RecordId getRecordId(int row) {
+        return recordIds[row];
+    }
+
+    public void setRecordId(int row, RecordId rid) {
+        recordIds[row] = rid;
+    }
+
+    /**
+     * @return a new Tuple holding the values of row
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(recordIds[row]);
+        return t;
+    }
+
+    /**
+     * Narrows the selection to the rows that satisfy p. The comparison is
+     * made on the column vector, without creating any Fields.
+     */
+    public void filter(Predicate p) {
+        Object col = columns[p.getField()];
+        Predicate.Op op = p.getOp();
+        int n = 0;
+        if (col instanceof int[]) {
+            int[] values = (int[]) col;
+            int operand = ((IntField) p.getOperand()).getValue();
+            // hoist the switch out of the loop for the common comparisons
+            switch (op) {
+            case EQUALS:
+                for (int i = 0; i < numSelected; i++) {
+                    int row = selection[i];
+                    if (values[row] == operand)
+                        selection[n++] = row;
+                }
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < numSelected; i++) {
+                    int row = selection[i];
+                    if (values[row] < operand)
+                        selection[n++] = row;
+                }
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < numSelected; i++) {
+                    int row = selection[i];
+                    if (values[row] > operand)
+                        selection[n++] = row;
+                }
+                break;
+            default:
+                for (int i = 0; i < numSelected; i++) {
+                    int row = selection[i];
+                    if (IntField.compare(values[row], op, operand))
+                        selection[n++] = row;
+                }
+            }
+        } else {
+            String[] values = (String[]) col;
+            String operand = ((StringField) p.getOperand()).getValue();
+            for (int i = 0; i < numSelected; i++) {
+                int row = selection[i];
+                if (StringField.compare(values[row], op, operand))
+                    selection[n++] = row;
+            }
+        }
+        numSelected = n;
+    }
+
+    /**
+     * Returns a batch over the same rows and selection that only has the
+     * given fields. No values are copied, so the result is only valid as
+     * long as this batch is.
+     *
+     * @param fields the indexes of the fields to keep, in output order
+     * @param td the schema of the result
+     */
+    public TupleBatch project(List<Integer> fields, TupleDesc td) {
+        Object[] cols = new Object[fields.size()];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = columns[fields.get(i)];
+        return new TupleBatch(td, cols, this);
+    }
+}
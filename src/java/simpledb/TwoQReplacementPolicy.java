@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * 2Q replacement (Johnson and Shasha). Pages seen for the first time enter a
+ * FIFO queue (A1in); pages that are requested again after falling out of
+ * A1in are remembered in a bounded ghost queue of page ids (A1out) and are
+ * promoted into an LRU queue (Am) when they are loaded again. Sequential scans
+ * therefore cycle through A1in without flushing the hot pages in Am.
+ * <p>
+ * All queues are linked lists over frame indexes (or a linked hash set for
+ * the ghost ids), so every operation is constant time. A pinned frame is
+ * unlinked from its queue and re-enters it at the tail when unpinned. Hits
+ * are logged in an {@link AccessBuffer} and applied when the next victim is
+ * chosen, so reporting one takes no lock.
+ */
+public class TwoQReplacementPolicy implements ReplacementPolicy {
+
+    private static final byte NONE = 0, A1IN = 1, AM = 2;
+
+    private final PageId[] pids;
+    /** The queue each tracked frame belongs to, even while it is pinned. */
+    private final byte[] queue;
+    private final FrameList a1in;
+    private final FrameList am;
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final AccessBuffer hits;
+    private final int kin;
+    private final int kout;
+
+    /**
+     * Creates a 2Q policy with the recommended tuning: A1in holds a quarter
+     * of the frames and A1out remembers half as many page ids as there are
+     * frames.
+     *
+     * @param numFrames the number of frames in the BufferPool
+     */
+    public TwoQReplacementPolicy(int numFrames) {
+        this(numFrames, Math.max(1, numFrames / 4), Math.max(1, numFrames / 2));
+    }
+
+    /**
+     * @param numFrames the number of frames in the BufferPool
+     * @param kin the target size of the A1in queue, in frames
+     * @param kout the number of evicted page ids remembered in A1out
+     */
+    public TwoQReplacementPolicy(int numFrames, int kin, int kout) {
+        this.pids = new PageId[numFrames];
+        this.queue = new byte[numFrames];
+        this.a1in = new FrameList(numFrames);
+        this.am = new FrameList(numFrames);
+        this.hits = new AccessBuffer(numFrames);
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        frameFreed(frame);
+        pids[frame] = pid;
+        if (a1out.remove(pid)) {
+            queue[frame] = AM;
+            am.addLast(frame);
+        } else {
+            queue[frame] = A1IN;
+            a1in.addLast(frame);
+        }
+    }
+
+    public void pageAccessed(int frame) {
+        hits.record(frame);
+    }
+
+    public void frameFreed(int frame) {
+        a1in.remove(frame);
+        am.remove(frame);
+        pids[frame] = null;
+        queue[frame] = NONE;
+    }
+
+    public void setEvictable(int frame, boolean evictable) {
+        FrameList list = queue[frame] == AM ? am : a1in;
+        if (queue[frame] == NONE || list.contains(frame) == evictable)
+            return;
+        if (evictable)
+            list.addLast(frame);
+        else
+            list.remove(frame);
+    }
+
+    public int victim() {
+        hits.drain(this::hit);
+        int frame;
+        if (a1in.size() > kin || am.isEmpty()) {
+            frame = a1in.pollFirst();
+            if (frame == -1)
+                return -1;
+            remember(pids[frame]);
+        } else {
+            frame = am.pollFirst();
+        }
+        pids[frame] = null;
+        queue[frame] = NONE;
+        return frame;
+    }
+
+    private void hit(int frame) {
+        // hits in A1in are deliberately ignored: correlated references
+        // during a scan should not promote a page
+        if (am.contains(frame))
+            am.addLast(frame);
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
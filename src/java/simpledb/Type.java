@@ -2,6 +2,9 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +27,25 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                return new IntField(buf.getInt());
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            return IntField.compare(buf.getInt(offset), op, ((IntField) operand).getValue());
+        }
+
+        @Override
+        void readInto(ByteBuffer buf, int offset, TupleBatch batch, int i, int row) {
+            batch.setInt(i, row, buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,10 +64,110 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                int start = buf.position();
+                String s = readString(buf, start);
+                ((Buffer) buf).position(start + getLen());
+                return new StringField(s, STRING_LEN);
+            } catch (RuntimeException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            String other = ((StringField) operand).getValue();
+            if (op == Predicate.Op.LIKE) {
+                int found = indexOfString(buf, offset, other);
+                if (found != NOT_ASCII)
+                    return found >= 0;
+            } else {
+                int cmpVal = compareString(buf, offset, other);
+                if (cmpVal != NOT_ASCII)
+                    return StringField.compare(cmpVal, op);
+            }
+            // bytes outside ASCII depend on the default charset: decode them
+            return StringField.compare(readString(buf, offset), op, other);
+        }
+
+        @Override
+        void readInto(ByteBuffer buf, int offset, TupleBatch batch, int i, int row) {
+            batch.setString(i, row, readString(buf, offset));
+        }
     };
     
     public static final int STRING_LEN = 128;
 
+  /**
+   * @return the serialized STRING_TYPE field at offset in buf, cut to
+   *   STRING_LEN characters as StringField would
+   */
+    static String readString(ByteBuffer buf, int offset) {
+        int strLen = buf.getInt(offset);
+        byte bs[] = new byte[strLen];
+        ByteBuffer src = buf.duplicate();
+        ((Buffer) src).position(offset + 4);
+        src.get(bs);
+        String s = new String(bs);
+        if (s.length() > STRING_LEN)
+            s = s.substring(0, STRING_LEN);
+        return s;
+    }
+
+    /** Returned by the byte-wise string helpers when they cannot decide. */
+    private static final int NOT_ASCII = Integer.MIN_VALUE;
+
+  /**
+   * Compares the serialized STRING_TYPE field at offset in buf to other
+   * byte by byte, without decoding it.
+   *
+   * @return a value with the sign of {@link String#compareTo}, or NOT_ASCII
+   *   if a non-ASCII byte is reached before the result is known
+   */
+    private static int compareString(ByteBuffer buf, int offset, String other) {
+        int strLen = buf.getInt(offset);
+        if (strLen > STRING_LEN)
+            return NOT_ASCII;
+        int n = Math.min(strLen, other.length());
+        for (int i = 0; i < n; i++) {
+            byte b = buf.get(offset + 4 + i);
+            if (b < 0)
+                return NOT_ASCII;
+            if (b != other.charAt(i))
+                return b - other.charAt(i);
+        }
+        return strLen - other.length();
+    }
+
+  /**
+   * Looks for other in the serialized STRING_TYPE field at offset in buf
+   * byte by byte, without decoding it.
+   *
+   * @return the index of the first occurrence of other, -1 if there is
+   *   none, or NOT_ASCII if the field holds a non-ASCII byte
+   */
+    private static int indexOfString(ByteBuffer buf, int offset, String other) {
+        int strLen = buf.getInt(offset);
+        if (strLen > STRING_LEN)
+            return NOT_ASCII;
+        int start = offset + 4;
+        for (int i = 0; i < strLen; i++) {
+            if (buf.get(start + i) < 0)
+                return NOT_ASCII;
+        }
+        for (int i = 0; i + other.length() <= strLen; i++) {
+            int j = 0;
+            while (j < other.length() && buf.get(start + i + j) == other.charAt(j))
+                j++;
+            if (j == other.length())
+                return i;
+        }
+        return -1;
+    }
+
   /**
    * @return the number of bytes required to store a field of this type.
    */
@@ -60,4 +182,34 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from buf at its position, which is moved past the field.
+   * @param buf The buffer to read from
+   * @throws ParseException if the data read from the buffer is not
+   *   of the appropriate type.
+   */
+    public abstract Field parse(ByteBuffer buf) throws ParseException;
+
+  /**
+   * Compares the serialized field of this type at offset in buf to operand,
+   * with the same result as parsing it and calling
+   * {@link Field#compare}, but without creating a Field.
+   *
+   * @param buf The buffer holding the serialized field
+   * @param offset The absolute offset of the field in buf
+   * @param op The comparison to apply
+   * @param operand The Field to compare against; must be of this type
+   */
+    public abstract boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand);
+
+  /**
+   * Stores the serialized field of this type at offset in buf as field i of
+   * row in batch, without creating a Field.
+   *
+   * @param buf The buffer holding the serialized field
+   * @param offset The absolute offset of the field in buf
+   */
+    abstract void readInto(ByteBuffer buf, int offset, TupleBatch batch, int i, int row);
+
 }
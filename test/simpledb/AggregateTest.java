@@ -1,14 +1,24 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -176,6 +186,210 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Restores serial execution
+   */
+  @After public void restoreParallelism() {
+    Aggregate.setParallelism(1);
+    SeqScan.setParallelism(1);
+  }
+
+  /** @return the (group, aggregate) pairs op returns */
+  private static Map<Integer, Integer> groups(OpIterator op) throws Exception {
+    Map<Integer, Integer> groups = new HashMap<Integer, Integer>();
+    op.open();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(null, groups.put(t.getInt(0), t.getInt(1)));
+    }
+    op.close();
+    return groups;
+  }
+
+  /**
+   * Aggregating on several threads, over a parallel scan, gives the same
+   * groups as aggregating serially
+   */
+  @Test public void parallelAggregate() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 30000, 100, null, null);
+    TransactionId tid = new TransactionId();
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.AVG,
+        Aggregator.Op.MIN, Aggregator.Op.MAX }) {
+      Aggregate.setParallelism(1);
+      SeqScan.setParallelism(1);
+      Map<Integer, Integer> expected = groups(new Aggregate(new SeqScan(tid, f.getId()), 1, 0, op));
+      Aggregate.setParallelism(4);
+      SeqScan.setParallelism(3);
+      assertEquals(expected, groups(new Aggregate(new SeqScan(tid, f.getId()), 1, 0, op)));
+    }
+    Database.getBufferPool().transactionComplete(tid);
+
+    // a child that reuses its batches
+    Aggregate op = new Aggregate(scan2, 1, 0, Aggregator.Op.COUNT);
+    op.open();
+    count.open();
+    TestUtil.matchAllTuples(count, op);
+  }
+
+  /**
+   * An Error in a parallel worker fails open instead of dropping that
+   * worker's groups
+   */
+  @Test public void parallelWorkerError() throws Exception {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < 100; i++)
+      tuples.add(Utility.getHeapTuple(new int[] { i % 7, i }));
+    OpIterator child = new TupleIterator(Utility.getTupleDesc(2), tuples) {
+      private int batches = 0;
+      public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (++batches == 2)
+          throw new AssertionError("bad batch");
+        return super.nextBatch();
+      }
+    };
+    Aggregate.setParallelism(4);
+    Aggregate op = new Aggregate(child, 1, 0, Aggregator.Op.COUNT);
+    try {
+      op.open();
+      fail("expected open to fail");
+    } catch (DbException e) {
+      assertTrue(e.getCause() instanceof AssertionError);
+    }
+  }
+
+  /**
+   * The memory budget is in pages, so it holds fewer groups of wider
+   * output tuples
+   */
+  @Test public void memoryBudget() {
+    Aggregate.setMemoryPages(2);
+    try {
+      int groups = 2 * BufferPool.getPageSize() / 8;
+      assertEquals(groups, new Aggregate(scan1, 1, 0, Aggregator.Op.MIN).maxGroups());
+      Aggregate wide = new Aggregate(scan1, new int[] { 1, 1, 1 }, new int[] { 0 },
+          new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM });
+      assertEquals(groups / 2, wide.maxGroups());
+    } finally {
+      Aggregate.setMemoryPages(Aggregate.DEFAULT_MEMORY_PAGES);
+    }
+  }
+
+  /**
+   * Several aggregates, grouped by two fields, are computed together
+   */
+  @Test public void multipleGroupsAndAggregates() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(4,
+        new int[] { 1, 1, 2, 7,
+                    1, 2, 3, 1,
+                    1, 1, 4, 5,
+                    2, 1, 5, 2,
+                    1, 2, 6, 9 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 3, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MAX, Aggregator.Op.COUNT });
+    assertEquals(5, op.getTupleDesc().numFields());
+    OpIterator expected = TestUtil.createTupleList(5,
+        new int[] { 1, 1, 6, 7, 2,
+                    1, 2, 9, 9, 2,
+                    2, 1, 5, 2, 1 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * The parser plans GROUP BY over several fields with several aggregates
+   */
+  @Test public void groupByClause() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(4, 500, 4, null, tuples, "c");
+    Database.getCatalog().addTable(f, "grp");
+    TableStats.setTableStats("grp", new TableStats(f.getId(), 1));
+    Map<List<Integer>, List<Integer>> expected = new HashMap<List<Integer>, List<Integer>>();
+    for (ArrayList<Integer> t : tuples) {
+      List<Integer> group = Arrays.asList(t.get(1), t.get(0));
+      List<Integer> aggs = expected.get(group);
+      if (aggs == null)
+        expected.put(group, Arrays.asList(t.get(2), t.get(3)));
+      else
+        expected.put(group, Arrays.asList(aggs.get(0) + t.get(2), Math.min(aggs.get(1), t.get(3))));
+    }
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT c1, SUM(c2), grp.c0, MIN(c3) FROM grp GROUP BY grp.c0, c1;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    Map<List<Integer>, List<Integer>> read = new HashMap<List<Integer>, List<Integer>>();
+    plan.open();
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      assertEquals(null, read.put(Arrays.asList(t.getInt(0), t.getInt(2)),
+          Arrays.asList(t.getInt(1), t.getInt(3))));
+    }
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+    assertEquals(expected, read);
+  }
+
+  /**
+   * A streaming Aggregate over input sorted on the group fields returns
+   * the same groups as hashing, a group at a time, also after a rewind
+   */
+  @Test public void streamingAggregate() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 2, 1, 4,
+                    1, 2, 3,
+                    2, 1, 5,
+                    1, 1, 9,
+                    1, 2, 6,
+                    3, 3, 3 });
+    OrderBy sorted = new OrderBy(new int[] { 1, 0 }, new boolean[] { false, true },
+        OrderBy.NO_LIMIT, scan);
+    assertTrue(Aggregate.isGroupedOn(sorted, new int[] { 0, 1 }));
+    assertTrue(Aggregate.isGroupedOn(sorted, new int[] { 1 }));
+    assertFalse(Aggregate.isGroupedOn(sorted, new int[] { 0 }));
+    assertFalse(Aggregate.isGroupedOn(scan, new int[] { 0 }));
+
+    Aggregate op = new Aggregate(sorted, new int[] { 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT }, true);
+    assertTrue(op.isStreaming());
+    OpIterator expected = TestUtil.createTupleList(4,
+        new int[] { 3, 3, 3, 1,
+                    1, 2, 9, 2,
+                    1, 1, 9, 1,
+                    2, 1, 9, 2 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * The planner streams a group by on the key of a B+ tree file, and
+   * hashes a group by on any other field
+   */
+  @Test public void streamingPlan() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+    bf = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+    Database.getCatalog().addTable(bf, "keyed");
+    TableStats.setTableStats("keyed", new TableStats(bf.getId(), 1));
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT c0, COUNT(c1) FROM keyed GROUP BY c0;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Aggregate) ((Operator) plan).getChildren()[0]).isStreaming());
+
+    lp = new Parser().generateLogicalPlan(tid,
+        "SELECT c1, COUNT(c0) FROM keyed GROUP BY c1;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertFalse(((Aggregate) ((Operator) plan).getChildren()[0]).isStreaming());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
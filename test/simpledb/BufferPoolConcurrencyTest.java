@@ -0,0 +1,191 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+  private static final int THREADS = 8;
+  private static final int ROWS = 3000;
+
+  /**
+   * Several threads scan two tables through a pool much smaller than the
+   * tables, so hits, misses and evictions all race with each other. Each
+   * scan keeps its current page pinned, so the pool needs one frame per
+   * thread.
+   */
+  @Test public void concurrentScans() throws Exception {
+    final HeapFile[] tables = new HeapFile[] {
+        SystemTestUtil.createRandomHeapFile(2, ROWS, null, null),
+        SystemTestUtil.createRandomHeapFile(3, ROWS, null, null) };
+    Database.resetBufferPool(THREADS);
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final int[] counts = new int[THREADS];
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < THREADS; i++) {
+      final int id = i;
+      Thread t = new Thread() {
+        public void run() {
+          try {
+            for (int round = 0; round < 3; round++) {
+              SeqScan scan = new SeqScan(new TransactionId(),
+                  tables[id % tables.length].getId(), "t");
+              scan.open();
+              while (scan.hasNext()) {
+                scan.next();
+                counts[id]++;
+              }
+              scan.close();
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads)
+      t.join();
+
+    assertNull(failure.get());
+    for (int i = 0; i < THREADS; i++)
+      assertEquals(3 * ROWS, counts[i]);
+  }
+
+  /**
+   * Threads that briefly pin two hot pages race with threads whose misses
+   * evict them. A frame that is pinned when it is picked for eviction must
+   * go back to the replacement policy even if it is unpinned before the
+   * eviction backs off, so afterwards every frame can still be evicted to
+   * make room for new pages.
+   */
+  @Test public void pinEvictStress() throws Exception {
+    final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS * 4, null, null);
+    final int pages = hf.numPages();
+    final int frames = 4;
+    final BufferPool bp = Database.resetBufferPool(frames);
+    assertTrue(pages > 4 * frames);
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < THREADS; i++) {
+      final int id = i;
+      Thread t = new Thread() {
+        public void run() {
+          try {
+            TransactionId tid = new TransactionId();
+            // half of the threads hit the first pages, the others miss
+            boolean hits = id % 2 == 0;
+            for (int n = 0; n < (hits ? 50000 : 5000); n++) {
+              int page = hits ? n % 2 : 2 + (n * 7 + id) % (pages - 2);
+              bp.getPage(tid, new HeapPageId(hf.getId(), page), Permissions.READ_ONLY);
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads)
+      t.join();
+    assertNull(failure.get());
+
+    // pinning as many new pages as there are frames evicts every frame
+    TransactionId tid = new TransactionId();
+    ArrayList<BufferPool.PageHandle> pinned = new ArrayList<BufferPool.PageHandle>();
+    for (int page = 0; page < pages && pinned.size() < frames; page++) {
+      HeapPageId pid = new HeapPageId(hf.getId(), page);
+      if (!bp.isResident(pid))
+        pinned.add(bp.pinPage(tid, pid, Permissions.READ_ONLY));
+    }
+    assertEquals(frames, pinned.size());
+    for (BufferPool.PageHandle h : pinned)
+      h.close();
+  }
+
+  /**
+   * A discarded page is read back from disk on the next request
+   */
+  @Test public void discardPage() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    BufferPool bp = Database.resetBufferPool(2);
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    TransactionId tid = new TransactionId();
+    Page first = bp.getPage(tid, pid, Permissions.READ_ONLY);
+    bp.discardPage(pid);
+    bp.discardPage(pid);
+    Page second = bp.getPage(tid, pid, Permissions.READ_ONLY);
+    assertEquals(pid, second.getId());
+    assertEquals(false, first == second);
+  }
+
+  /**
+   * A sequential scan has the pages following the current one read in the
+   * background, and a prefetched page is served from the pool afterwards.
+   */
+  @Test public void readAhead() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    BufferPool bp = Database.resetBufferPool(40);
+    assertTrue(hf.numPages() > 4);
+
+    DbFileIterator it = hf.iterator(new TransactionId());
+    it.open();
+    it.next();
+    HeapPageId next = new HeapPageId(hf.getId(), 1);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!bp.isResident(next) && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertTrue(bp.isResident(next));
+
+    int count = 1;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    it.close();
+    assertEquals(ROWS, count);
+  }
+
+  /**
+   * Prefetching is only a hint and is skipped when disabled
+   */
+  @Test public void readAheadDisabled() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    BufferPool bp = Database.resetBufferPool(40);
+    BufferPool.setMaxReadAhead(0);
+    try {
+      assertEquals(0, bp.getReadAheadLimit());
+      DbFileIterator it = hf.iterator(new TransactionId());
+      it.open();
+      it.next();
+      Thread.sleep(100);
+      assertFalse(bp.isResident(new HeapPageId(hf.getId(), 1)));
+      it.close();
+    } finally {
+      BufferPool.setMaxReadAhead(BufferPool.DEFAULT_MAX_READ_AHEAD);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+  }
+}
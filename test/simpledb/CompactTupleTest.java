@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompactTupleTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE, Type.STRING_TYPE });
+
+    private static Tuple tuple(int a, String b, int c, String d) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(a));
+        t.setField(1, new StringField(b, Type.STRING_LEN));
+        t.setField(2, new IntField(c));
+        t.setField(3, new StringField(d, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * A copy has the same values, read either way
+     */
+    @Test public void copy() {
+        Tuple t = tuple(-7, "hello", 1 << 20, "");
+        RecordId rid = new RecordId(new HeapPageId(1, 2), 3);
+        t.setRecordId(rid);
+        CompactTuple c = new CompactTuple.Arena().copy(t);
+
+        assertEquals(-7, c.getInt(0));
+        assertEquals("hello", c.getString(1));
+        assertEquals(1 << 20, c.getInt(2));
+        assertEquals("", c.getString(3));
+        assertEquals(rid, c.getRecordId());
+        for (int i = 0; i < TD.numFields(); i++)
+            assertEquals(t.getField(i), c.getField(i));
+        assertEquals(t.toString(), c.toString());
+    }
+
+    /**
+     * Tuples copied by one arena keep their own strings
+     */
+    @Test public void sharedArena() {
+        CompactTuple.Arena arena = new CompactTuple.Arena();
+        CompactTuple[] copies = new CompactTuple[5000];
+        for (int i = 0; i < copies.length; i++)
+            copies[i] = arena.copy(tuple(i, "s" + i, -i, "t" + i));
+        for (int i = 0; i < copies.length; i++) {
+            assertEquals(i, copies[i].getInt(0));
+            assertEquals("s" + i, copies[i].getString(1));
+            assertEquals("t" + i, copies[i].getString(3));
+        }
+    }
+
+    /**
+     * Setting a field switches the tuple to Fields without losing the others
+     */
+    @Test public void setField() {
+        CompactTuple c = new CompactTuple.Arena().copy(tuple(1, "a", 2, "b"));
+        c.setField(1, new StringField("z", Type.STRING_LEN));
+        c.setField(2, new IntField(5));
+        assertEquals(1, c.getInt(0));
+        assertEquals("z", c.getString(1));
+        assertEquals(5, c.getInt(2));
+        assertEquals("b", c.getString(3));
+    }
+
+    /**
+     * Tuples read from a page return primitive values from the page image
+     */
+    @Test public void heapPageTuple() throws Exception {
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, Utility.getTupleDesc(2)),
+                SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(-1, -1);
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple t = page.iterator().next();
+        assertFalse(t.getClass() == Tuple.class);
+        int a = t.getInt(0), b = t.getInt(1);
+        assertEquals(new IntField(a), t.getField(0));
+        assertEquals(new IntField(b), t.getField(1));
+
+        Predicate p = new Predicate(0, Predicate.Op.EQUALS, t.getField(0));
+        assertTrue(p.filter(t));
+        assertTrue(new JoinPredicate(0, Predicate.Op.EQUALS, 0).filter(t, t));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompactTupleTest.class);
+    }
+}
@@ -0,0 +1,133 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class DbFileChannelTest extends SimpleDbTestBase {
+    private File file;
+    private DbFileChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("channel", ".dat");
+        file.deleteOnExit();
+        channel = new DbFileChannel(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.close();
+    }
+
+    private static byte[] filled(int value, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    /**
+     * Positional writes land at their offset and can be read back
+     */
+    @Test
+    public void readWrite() throws Exception {
+        channel.write(filled(1, 16), 0);
+        channel.write(filled(2, 16), 32);
+        assertEquals(48, channel.size());
+        assertEquals(48, file.length());
+
+        byte[] data = new byte[16];
+        channel.read(data, 32);
+        assertArrayEquals(filled(2, 16), data);
+        channel.read(data, 16);
+        assertArrayEquals(filled(0, 16), data);
+    }
+
+    /**
+     * append writes at the end of the file and returns the offset used
+     */
+    @Test
+    public void append() throws Exception {
+        assertEquals(0, channel.append(filled(1, 8)));
+        assertEquals(8, channel.append(filled(2, 8)));
+        assertEquals(16, channel.size());
+    }
+
+    /**
+     * The channel reopens itself after close
+     */
+    @Test
+    public void reopen() throws Exception {
+        channel.write(filled(3, 8), 0);
+        channel.close();
+        byte[] data = new byte[8];
+        channel.read(data, 0);
+        assertArrayEquals(filled(3, 8), data);
+    }
+
+    /**
+     * Reading past the end of the file fails
+     */
+    @Test(expected = EOFException.class)
+    public void readPastEnd() throws Exception {
+        channel.write(filled(1, 8), 0);
+        channel.read(new byte[16], 0);
+    }
+
+    /**
+     * An interrupt closes the underlying channel; the next access reopens it
+     */
+    @Test
+    public void interrupted() throws Exception {
+        channel.write(filled(4, 8), 0);
+        byte[] data = new byte[8];
+        Thread.currentThread().interrupt();
+        try {
+            channel.read(data, 0);
+            fail("read by an interrupted thread should fail");
+        } catch (ClosedByInterruptException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+        channel.read(data, 0);
+        assertArrayEquals(filled(4, 8), data);
+        channel.write(filled(5, 8), 8);
+        assertEquals(16, channel.size());
+    }
+
+    /**
+     * Reading a file that does not exist fails without creating it
+     */
+    @Test
+    public void readMissingFile() throws Exception {
+        File missing = new File(file.getPath() + ".missing");
+        DbFileChannel c = new DbFileChannel(missing);
+        try {
+            c.read(new byte[8], 0);
+            fail("reading a missing file should fail");
+        } catch (FileNotFoundException e) {
+            // expected
+        } finally {
+            c.close();
+        }
+        assertFalse(missing.exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DbFileChannelTest.class);
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ExtentAllocatorTest extends SimpleDbTestBase {
+    private static final int PAGE = BufferPool.getPageSize();
+
+    private File file;
+    private DbFileChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("extent", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + ExtentAllocator.SUFFIX).deleteOnExit();
+        channel = new DbFileChannel(file);
+        ExtentAllocator.setExtentSize(8 * PAGE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ExtentAllocator.setExtentSize(ExtentAllocator.DEFAULT_EXTENT_SIZE);
+        channel.close();
+    }
+
+    /**
+     * The file grows a whole extent at a time, but only the pages handed out
+     * are counted
+     */
+    @Test
+    public void growsByExtent() throws Exception {
+        ExtentAllocator extents = new ExtentAllocator(file, channel, 0);
+        assertEquals(0, extents.numPages());
+        assertEquals(0, extents.allocatePages(1));
+        assertEquals(8 * PAGE, file.length());
+        assertEquals(1, extents.numPages());
+
+        for (int i = 1; i < 8; i++)
+            assertEquals(i, extents.allocatePages(1));
+        assertEquals(8 * PAGE, file.length());
+
+        assertEquals(8, extents.allocatePages(1));
+        assertEquals(16 * PAGE, file.length());
+        assertEquals(9, extents.numPages());
+    }
+
+    /**
+     * Pages are counted from the base offset
+     */
+    @Test
+    public void base() throws Exception {
+        channel.write(new byte[9], 0);
+        ExtentAllocator extents = new ExtentAllocator(file, channel, 9);
+        assertEquals(0, extents.numPages());
+        assertEquals(0, extents.allocatePages(2));
+        assertEquals(9 + 8 * PAGE, file.length());
+        assertEquals(2, extents.numPages());
+    }
+
+    /**
+     * Writing past the pages handed out makes them part of the file
+     */
+    @Test
+    public void written() throws Exception {
+        ExtentAllocator extents = new ExtentAllocator(file, channel, 0);
+        extents.allocatePages(1);
+        channel.write(new byte[PAGE], 3 * PAGE);
+        extents.written(4 * PAGE);
+        assertEquals(4, extents.numPages());
+        assertEquals(4, extents.allocatePages(1));
+    }
+
+    /**
+     * When the file is opened again, the unused pages of its last extent
+     * are not counted, and are handed out again; pages that were handed out
+     * still count, even if they are all zeros
+     */
+    @Test
+    public void reopen() throws Exception {
+        ExtentAllocator extents = new ExtentAllocator(file, channel, 0);
+        extents.allocatePages(2);
+        byte[] data = new byte[PAGE];
+        data[PAGE - 1] = 1;
+        channel.write(data, PAGE);
+        assertEquals(8 * PAGE, file.length());
+
+        extents.close();
+
+        ExtentAllocator reopened = new ExtentAllocator(file, channel, 0);
+        assertEquals(2, reopened.numPages());
+        assertEquals(2, reopened.allocatePages(1));
+        assertEquals(8 * PAGE, file.length());
+        reopened.close();
+
+        assertEquals(3, new ExtentAllocator(file, channel, 0).numPages());
+    }
+
+    /**
+     * A file without a side file, or whose length no longer matches the
+     * one recorded, counts as in use up to its end
+     */
+    @Test
+    public void staleMark() throws Exception {
+        channel.write(new byte[9 + 3 * PAGE], 0);
+        assertEquals(3, new ExtentAllocator(file, channel, 9).numPages());
+
+        ExtentAllocator extents = new ExtentAllocator(file, channel, 9);
+        extents.allocatePages(1);
+        extents.close();
+        assertEquals(4, new ExtentAllocator(file, channel, 9).numPages());
+
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(new byte[9 + 5 * PAGE]);
+        os.close();
+        assertEquals(5, new ExtentAllocator(file, channel, 9).numPages());
+    }
+
+    /**
+     * If the file is changed by someone else, its length is used as is
+     */
+    @Test
+    public void externalChange() throws Exception {
+        ExtentAllocator extents = new ExtentAllocator(file, channel, 0);
+        extents.allocatePages(1);
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(new byte[3 * PAGE]);
+        os.close();
+        assertEquals(1, extents.cachedNumPages());
+        assertEquals(3, extents.numPages());
+        assertEquals(3, extents.cachedNumPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExtentAllocatorTest.class);
+    }
+}
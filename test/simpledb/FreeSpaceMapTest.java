@@ -0,0 +1,96 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    private File heapFile;
+
+    @Before
+    public void setUp() throws Exception {
+        heapFile = File.createTempFile("table", ".dat");
+        heapFile.deleteOnExit();
+        new File(heapFile.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        // the map is discarded for an empty heap file, so give it a page
+        FileOutputStream os = new FileOutputStream(heapFile);
+        os.write(HeapPage.createEmptyPageData());
+        os.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FreeSpaceMap.delete(heapFile);
+    }
+
+    /**
+     * findPage skips pages marked full and comes back to freed ones
+     */
+    @Test
+    public void findPage() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(heapFile);
+        assertEquals(0, fsm.findPage(20));
+        for (int i = 0; i < 10; i++)
+            fsm.setFull(i, true);
+        assertEquals(10, fsm.findPage(20));
+        assertEquals(-1, fsm.findPage(10));
+        fsm.setFull(3, false);
+        assertEquals(3, fsm.findPage(20));
+        fsm.close();
+    }
+
+    /**
+     * The map is read back when the heap file is opened again
+     */
+    @Test
+    public void persistent() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(heapFile);
+        for (int i = 0; i < 12; i++)
+            fsm.setFull(i, true);
+        fsm.setFull(4, false);
+        fsm.close();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(heapFile);
+        assertEquals(4, reopened.findPage(20));
+        reopened.setFull(4, true);
+        assertEquals(12, reopened.findPage(20));
+        reopened.close();
+    }
+
+    /**
+     * A page cleared without writing the map is saved with the next write,
+     * or when the map is closed
+     */
+    @Test
+    public void clearFull() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(heapFile);
+        for (int i = 0; i < 20; i++)
+            fsm.setFull(i, true);
+        fsm.clearFull(17);
+        fsm.setFull(2, false);
+        fsm.clearFull(5);
+        assertEquals(2, fsm.findPage(20));
+        fsm.close();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(heapFile);
+        reopened.setFull(2, true);
+        assertEquals(5, reopened.findPage(20));
+        reopened.setFull(5, true);
+        assertEquals(17, reopened.findPage(20));
+        reopened.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  /** The number of two-int build rows that fit in memory. */
+  private int mapSize;
+
+  @Before public void setUp() {
+    // a small budget, so that spilling tests stay fast
+    HashEquiJoin.setMemoryPages(4);
+    mapSize = HashEquiJoin.maxBuildRows(Utility.getTupleDesc(2));
+  }
+
+  @After public void tearDown() {
+    HashEquiJoin.setMemoryPages(HashEquiJoin.DEFAULT_MEMORY_PAGES);
+  }
+
+  /**
+   * The memory budget is in pages, so it holds fewer rows of wider tuples
+   */
+  @Test public void memoryBudget() {
+    assertEquals(4 * BufferPool.getPageSize() / 8, mapSize);
+    assertEquals(mapSize / 2, HashEquiJoin.maxBuildRows(Utility.getTupleDesc(4)));
+  }
+
+  private static String row(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+    StringBuilder sb = new StringBuilder();
+    for (Integer v : t1)
+      sb.append(v).append('\t');
+    for (Integer v : t2)
+      sb.append(v).append('\t');
+    return sb.toString().trim();
+  }
+
+  private static List<String> read(OpIterator op) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    op.open();
+    while (op.hasNext())
+      rows.add(op.next().toString().trim());
+    op.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * The optimizer plans EQUALS joins as hash joins, and charges for the I/O
+   * of spilling once the left side no longer fits in memory
+   */
+  @Test public void joinSelection() throws Exception {
+    HeapFile l = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "c");
+    HeapFile r = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "c");
+    SeqScan ls = new SeqScan(new TransactionId(), l.getId(), "l");
+    SeqScan rs = new SeqScan(new TransactionId(), r.getId(), "r");
+    String f1 = ls.getTupleDesc().getFieldName(0);
+    String f2 = rs.getTupleDesc().getFieldName(0);
+    LogicalJoinNode eq = new LogicalJoinNode("l", "r", f1, f2, Predicate.Op.EQUALS);
+    LogicalJoinNode lt = new LogicalJoinNode("l", "r", f1, f2, Predicate.Op.LESS_THAN);
+    assertTrue(JoinOptimizer.instantiateJoin(eq, ls, rs) instanceof HashEquiJoin);
+    assertFalse(JoinOptimizer.instantiateJoin(lt, ls, rs) instanceof HashEquiJoin);
+
+    LogicalPlan plan = new LogicalPlan();
+    plan.addScan(l.getId(), "l");
+    plan.addScan(r.getId(), "r");
+    JoinOptimizer jo = new JoinOptimizer(plan, new Vector<LogicalJoinNode>());
+    assertEquals(10 + 20 + 2.0 * mapSize + 100,
+        jo.estimateJoinCost(eq, mapSize, 100, 10, 20, false, false), 1e-9);
+    // half of both sides is written out and read back
+    assertEquals(2 * (10 + 20) + 4.0 * mapSize + 100,
+        jo.estimateJoinCost(eq, 2 * mapSize, 100, 10, 20, false, false), 1e-9);
+  }
+
+  /**
+   * A build side larger than memory is partitioned to disk, and the result
+   * is the same as that of an in-memory join
+   */
+  @Test public void spill() throws Exception {
+    ArrayList<ArrayList<Integer>> left = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> right = new ArrayList<ArrayList<Integer>>();
+    HeapFile l = SystemTestUtil.createRandomHeapFile(2, 3 * mapSize, null, left);
+    HeapFile r = SystemTestUtil.createRandomHeapFile(2, 5000, null, right);
+
+    HashMap<Integer, ArrayList<ArrayList<Integer>>> byKey =
+        new HashMap<Integer, ArrayList<ArrayList<Integer>>>();
+    for (ArrayList<Integer> t : left) {
+      if (!byKey.containsKey(t.get(1)))
+        byKey.put(t.get(1), new ArrayList<ArrayList<Integer>>());
+      byKey.get(t.get(1)).add(t);
+    }
+    ArrayList<String> expected = new ArrayList<String>();
+    for (ArrayList<Integer> t2 : right)
+      if (byKey.containsKey(t2.get(0)))
+        for (ArrayList<Integer> t1 : byKey.get(t2.get(0)))
+          expected.add(row(t1, t2));
+    Collections.sort(expected);
+
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+        new SeqScan(new TransactionId(), l.getId(), "l"),
+        new SeqScan(new TransactionId(), r.getId(), "r"));
+    assertTrue(expected.size() > 0);
+    assertEquals(expected, read(join));
+  }
+
+  /**
+   * A key too frequent to be split by partitioning is joined in blocks
+   */
+  @Test public void skew() throws Exception {
+    HashMap<Integer, Integer> columns = new HashMap<Integer, Integer>();
+    columns.put(1, 7);
+    HeapFile l = SystemTestUtil.createRandomHeapFile(2, mapSize + 5000, columns, null);
+    columns.clear();
+    columns.put(0, 7);
+    HeapFile r = SystemTestUtil.createRandomHeapFile(1, 3, columns, null);
+
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+        new SeqScan(new TransactionId(), l.getId(), "l"),
+        new SeqScan(new TransactionId(), r.getId(), "r"));
+    join.open();
+    int count = 0;
+    TupleBatch batch;
+    while ((batch = join.nextBatch()) != null) {
+      for (int i = 0; i < batch.numSelected(); i++)
+        assertEquals(7, batch.getInt(2, batch.getSelected(i)));
+      count += batch.numSelected();
+    }
+    join.close();
+    assertEquals(3 * (mapSize + 5000), count);
+  }
+
+  /**
+   * String keys are hashed through the generic path, and int keys give the
+   * same result with or without bloom filters
+   */
+  @Test public void keyTypes() throws Exception {
+    OpIterator left = TestUtil.createTupleList(2,
+        new Object[] { "a", 1, "b", 2, "a", 3, "c", 4 });
+    OpIterator right = TestUtil.createTupleList(2,
+        new Object[] { "a", 1, "c", 1, "d", 9 });
+    HashEquiJoin strings = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        left, right);
+    assertEquals(3, read(strings).size());
+
+    HeapFile l = SystemTestUtil.createRandomHeapFile(2, 3000, 500, null, null);
+    HeapFile r = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, null);
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    List<String> filtered = read(new HashEquiJoin(p,
+        new SeqScan(new TransactionId(), l.getId(), "l"),
+        new SeqScan(new TransactionId(), r.getId(), "r")));
+    HashEquiJoin.setUseBloomFilter(false);
+    try {
+      List<String> unfiltered = read(new HashEquiJoin(p,
+          new SeqScan(new TransactionId(), l.getId(), "l"),
+          new SeqScan(new TransactionId(), r.getId(), "r")));
+      assertTrue(filtered.size() > 0);
+      assertEquals(unfiltered, filtered);
+    } finally {
+      HashEquiJoin.setUseBloomFilter(true);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
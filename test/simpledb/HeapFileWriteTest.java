@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +45,59 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples()
+     */
+    @Test public void addTuples() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 2 * 504 + 1; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+
+        ArrayList<Page> dirtied = empty.insertTuples(tid, tuples.iterator());
+        assertEquals(3, dirtied.size());
+        assertEquals(3, empty.numPages());
+        for (Page p : dirtied)
+            assertEquals(tid, p.isDirty());
+        assertEquals(0, ((HeapPage) dirtied.get(1)).getNumEmptySlots());
+        assertEquals(503, ((HeapPage) dirtied.get(2)).getNumEmptySlots());
+        for (int i = 0; i < tuples.size(); ++i)
+            assertEquals(i / 504, tuples.get(i).getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * A slot freed on a full page is found again through the free space map
+     */
+    @Test public void reuseFreedSlot() throws Exception {
+        Tuple victim = null;
+        for (int i = 0; i < 2 * 504; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i == 10)
+                victim = t;
+        }
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, victim);
+        ArrayList<Page> dirtied = empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(0, dirtied.get(0).getId().getPageNumber());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * A page filled by tuples whose cached copy is then discarded, as when
+     * they are rolled back, is offered to inserts again
+     */
+    @Test public void discardedPageNotFull() throws Exception {
+        for (int i = 0; i < 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(1, empty.numPages());
+
+        Database.getBufferPool().discardPage(new HeapPageId(empty.getId(), 0));
+        ArrayList<Page> dirtied = empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(0, dirtied.get(0).getId().getPageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,42 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate)
+     */
+    @Test public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30000));
+
+        int expected = 0;
+        for (int[] tuple : EXAMPLE_VALUES)
+            if (tuple[0] > 30000)
+                expected++;
+
+        Iterator<Tuple> it = page.iterator(p);
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertTrue(((IntField) tup.getField(0)).getValue() > 30000);
+            count++;
+        }
+        assertEquals(expected, count);
+    }
+
+    /**
+     * Changing a tuple read from a page changes the page's data
+     */
+    @Test public void modifiedTupleIsWritten() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Tuple tup = page.iterator().next();
+        tup.setField(1, new IntField(-5));
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        Tuple first = reread.iterator().next();
+        assertEquals(new IntField(EXAMPLE_VALUES[0][0]), first.getField(0));
+        assertEquals(new IntField(-5), first.getField(1));
+    }
+
     /**
      * JUnit suite target
      */
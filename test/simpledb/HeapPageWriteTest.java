@@ -85,6 +85,24 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A tuple read from one page and inserted into another is written out
+     * with its own values, not the bytes of the new page's slot
+     */
+    @Test public void addTupleFromOtherPage() throws Exception {
+        HeapPage source = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage page = new HeapPage(new HeapPageId(-1, -2), HeapPage.createEmptyPageData());
+        Iterator<Tuple> it = source.iterator();
+        it.next();
+        Tuple second = it.next();
+        page.insertTuple(second);
+
+        HeapPage reread = new HeapPage(page.getId(), page.getPageData());
+        Tuple tup = reread.iterator().next();
+        assertEquals(new IntField(HeapPageReadTest.EXAMPLE_VALUES[1][0]), tup.getField(0));
+        assertEquals(new IntField(HeapPageReadTest.EXAMPLE_VALUES[1][1]), tup.getField(1));
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
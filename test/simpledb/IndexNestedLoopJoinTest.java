@@ -0,0 +1,91 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private int btreeId;
+    private int heapId;
+
+    /**
+     * Creates a B+ tree keyed on its first field and a heap file
+     */
+    @Before public void setUp() throws Exception {
+        tid = new TransactionId();
+        BTreeFile btree = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+        // reopen it with field names, so that joins can refer to them
+        btree = new BTreeFile(btree.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(btree, "btree");
+        btreeId = btree.getId();
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "c");
+        Database.getCatalog().addTable(heap, "heap");
+        heapId = heap.getId();
+    }
+
+    /**
+     * Only scans of a B+ tree on its key field, possibly filtered, can be
+     * probed
+     */
+    @Test public void canProbe() {
+        SeqScan scan = new SeqScan(tid, btreeId, "b");
+        assertTrue(IndexNestedLoopJoin.canProbe(scan, 0));
+        assertFalse(IndexNestedLoopJoin.canProbe(scan, 1));
+        Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(3)), scan);
+        assertTrue(IndexNestedLoopJoin.canProbe(f, 0));
+        assertFalse(IndexNestedLoopJoin.canProbe(new SeqScan(tid, heapId, "h"), 0));
+    }
+
+    /**
+     * Predicates whose index search cannot start at the key are rejected
+     */
+    @Test(expected = IllegalArgumentException.class) public void unsupportedOp() {
+        new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0),
+                new SeqScan(tid, heapId, "h"), new SeqScan(tid, btreeId, "b"));
+    }
+
+    /**
+     * Once index joins are enabled, the optimizer probes the B+ tree when
+     * it is the inner relation of an equi-join on its key
+     */
+    @Test public void instantiateJoin() throws Exception {
+        SeqScan heap = new SeqScan(tid, heapId, "h");
+        SeqScan btree = new SeqScan(tid, btreeId, "b");
+        LogicalJoinNode lj = new LogicalJoinNode("h", "b",
+                heap.getTupleDesc().getFieldName(1), btree.getTupleDesc().getFieldName(0),
+                Predicate.Op.EQUALS);
+        assertFalse(JoinOptimizer.instantiateJoin(lj, heap, btree) instanceof IndexNestedLoopJoin);
+
+        JoinOptimizer.setIndexJoins(true);
+        try {
+            assertTrue(JoinOptimizer.instantiateJoin(lj, heap, btree) instanceof IndexNestedLoopJoin);
+
+            LogicalJoinNode range = new LogicalJoinNode("h", "b",
+                    heap.getTupleDesc().getFieldName(1), btree.getTupleDesc().getFieldName(0),
+                    Predicate.Op.LESS_THAN);
+            assertFalse(JoinOptimizer.instantiateJoin(range, heap, btree) instanceof IndexNestedLoopJoin);
+
+            lj = new LogicalJoinNode("b", "h",
+                    btree.getTupleDesc().getFieldName(0), heap.getTupleDesc().getFieldName(1),
+                    Predicate.Op.EQUALS);
+            assertTrue(JoinOptimizer.instantiateJoin(lj, btree, heap) instanceof HashEquiJoin);
+        } finally {
+            JoinOptimizer.setIndexJoins(false);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -0,0 +1,57 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    /**
+     * Keys map to their latest value, and the table grows as needed
+     */
+    @Test public void putGet() {
+        IntHashTable table = new IntHashTable(4);
+        assertEquals(-1, table.get(0));
+        for (int i = -5000; i < 5000; i++)
+            assertEquals(-1, table.put(i * 7, i + 5000));
+        assertEquals(10000, table.size());
+        for (int i = -5000; i < 5000; i++)
+            assertEquals(i + 5000, table.get(i * 7));
+        assertEquals(-1, table.get(1));
+
+        assertEquals(5000, table.put(0, 1));
+        assertEquals(1, table.get(0));
+        assertEquals(10000, table.size());
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.get(7));
+    }
+
+    /**
+     * A bloom filter has no false negatives and few false positives
+     */
+    @Test public void bloomFilter() {
+        IntBloomFilter bloom = new IntBloomFilter(10000, 8);
+        for (int i = 0; i < 10000; i++)
+            bloom.add(i * 3);
+        for (int i = 0; i < 10000; i++)
+            assertTrue(bloom.mightContain(i * 3));
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+            if (bloom.mightContain(i * 3 + 1))
+                falsePositives++;
+        assertTrue(falsePositives < 500);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
@@ -2,7 +2,10 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -178,6 +181,122 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * SUM_COUNT returns each group's sum and count, and SC_AVG combines such
+   * partial results into the average
+   */
+  @Test public void sumCountAndScAvg() throws Exception {
+    scan1.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3,
+        new int[] { 1, 12, 3,
+                    3, 12, 3,
+                    5, 7, 1 }), it);
+
+    // combine the partials with another one for group 1: (12 + 8) / (3 + 2)
+    IntegerAggregator avgs = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    it.rewind();
+    avgs.mergeBatch(TupleBatch.read(it));
+    OpIterator more = TestUtil.createTupleList(3, new int[] { 1, 8, 2 });
+    more.open();
+    avgs.mergeTupleIntoGroup(more.next());
+    OpIterator result = avgs.iterator();
+    result.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4,
+                    3, 4,
+                    5, 7 }), result);
+  }
+
+  /**
+   * Aggregates without grouping keep no per-tuple state, and sum in a long
+   */
+  @Test public void manyTuples() throws Exception {
+    IntegerAggregator count = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.COUNT);
+    IntegerAggregator avg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.AVG);
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(1));
+    while (!batch.isFull())
+      batch.setInt(0, batch.addRow(), Integer.MAX_VALUE);
+    for (int i = 0; i < 1000; i++) {
+      count.mergeBatch(batch);
+      avg.mergeBatch(batch);
+    }
+    OpIterator it = count.iterator();
+    it.open();
+    assertEquals(1000 * batch.numRows(), it.next().getInt(0));
+    it = avg.iterator();
+    it.open();
+    assertEquals(Integer.MAX_VALUE, it.next().getInt(0));
+  }
+
+  /** @return n rows of (group, value), with groups in [0, groups) */
+  private static TupleBatch randomRows(int n, int groups, long seed) {
+    Random r = new Random(seed);
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(2), n);
+    for (int i = 0; i < n; i++) {
+      int row = batch.addRow();
+      batch.setInt(0, row, r.nextInt(groups));
+      batch.setInt(1, row, r.nextInt(1000) - 500);
+    }
+    return batch;
+  }
+
+  /** @return the (group, aggregate) pairs of agg */
+  private static Map<Integer, Integer> results(Aggregator agg) throws Exception {
+    Map<Integer, Integer> results = new HashMap<Integer, Integer>();
+    OpIterator it = agg.iterator();
+    it.open();
+    for (int pass = 0; pass < 2; pass++) {
+      results.clear();
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        assertEquals(null, results.put(t.getInt(0), t.getInt(1)));
+      }
+      it.rewind();
+    }
+    it.close();
+    return results;
+  }
+
+  /**
+   * Groups past the memory budget are spilled and aggregated afterwards,
+   * including, with a budget of one group, by sorting
+   */
+  @Test public void spill() throws Exception {
+    TupleBatch rows = randomRows(5000, 500, 1);
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG,
+        Aggregator.Op.MIN }) {
+      IntegerAggregator all = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      all.mergeBatch(rows);
+      Map<Integer, Integer> expected = results(all);
+      for (int budget : new int[] { 100, 1 }) {
+        IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, op, budget);
+        agg.mergeBatch(rows);
+        assertEquals(expected, results(agg));
+      }
+    }
+  }
+
+  /**
+   * Partial aggregates that spilled merge into one that spilled
+   */
+  @Test public void mergeSpilled() throws Exception {
+    IntegerAggregator all = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator merged = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG, 50);
+    for (int i = 0; i < 4; i++) {
+      TupleBatch rows = randomRows(5000, 1000, i);
+      IntegerAggregator partial = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG, 50);
+      partial.mergeBatch(rows);
+      merged.merge(partial);
+      all.mergeBatch(rows);
+    }
+    assertEquals(results(all), results(merged));
+  }
+
   /**
    * JUnit suite target
    */
@@ -105,6 +105,42 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for a block nested loops Join, which scans the inner child
+   * once for a block holding all of the outer tuples
+   */
+  @Test public void blockJoin() throws Exception {
+    final int[] rewinds = new int[1];
+    OpIterator inner = new TestUtil.MockScan(0, 5, width2) {
+      public void rewind() {
+        rewinds[0]++;
+        super.rewind();
+      }
+    };
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, inner, 1);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(((IntField) t.getField(0)).getValue() > ((IntField) t.getField(2)).getValue());
+      count++;
+    }
+    op.close();
+    // 1 > 0; 3 > 0..2; 5 > 0..4; 7 > 0..4
+    assertEquals(1 + 3 + 5 + 5, count);
+    assertEquals(0, rewinds[0]);
+
+    op = new Join(pred, scan1, new TestUtil.MockScan(0, 5, width2));
+    op.open();
+    count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(1 + 3 + 5 + 5, count);
+  }
+
   /**
    * JUnit suite target
    */
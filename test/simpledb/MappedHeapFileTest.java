@@ -0,0 +1,115 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private ArrayList<ArrayList<Integer>> tuples;
+    private MappedHeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1000,
+                1 << 16, null, tuples);
+        hf = new MappedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        hf.close();
+    }
+
+    /**
+     * Pages decoded from the mapping hold the tuples written to the file
+     */
+    @Test
+    public void readPages() throws Exception {
+        assertTrue(hf.numPages() > 1);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A page decoded from the mapping matches one read through HeapFile
+     */
+    @Test
+    public void samePageData() throws Exception {
+        HeapFile plain = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        assertArrayEquals(plain.readPage(pid).getPageData(),
+                hf.readPage(pid).getPageData());
+    }
+
+    /**
+     * Pages appended after the file was mapped are readable
+     */
+    @Test
+    public void remapOnGrowth() throws Exception {
+        int pages = hf.numPages();
+        hf.readPage(new HeapPageId(hf.getId(), pages - 1));
+
+        HeapPageId newPid = new HeapPageId(hf.getId(), pages);
+        HeapPage page = new HeapPage(newPid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(page);
+
+        assertEquals(pages + 1, hf.numPages());
+        HeapPage read = (HeapPage) hf.readPage(newPid);
+        assertEquals(page.getNumEmptySlots(), read.getNumEmptySlots());
+        assertEquals(new IntField(7), read.iterator().next().getField(0));
+    }
+
+    /**
+     * Writing a page over the mapping leaves the tuples and the before image
+     * of the pages read from it earlier as they were
+     */
+    @Test
+    public void rewriteDetachesReaders() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage old = (HeapPage) hf.readPage(pid);
+        byte[] image = old.getPageData();
+        Tuple first = old.iterator().next();
+        assertEquals(new IntField(tuples.get(0).get(0)), first.getField(0));
+
+        // slot 0 is reused for another tuple, and the page is written back
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        page.insertTuple(Utility.getHeapTuple(-1, 2));
+        page.markDirty(true, tid);
+        hf.writePage(page);
+
+        assertEquals(new IntField(tuples.get(0).get(1)), first.getField(1));
+        assertArrayEquals(image, old.getPageData());
+        assertArrayEquals(image, page.getBeforeImage().getPageData());
+        assertEquals(new IntField(-1),
+                ((HeapPage) hf.readPage(pid)).iterator().next().getField(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readPastEnd() throws Exception {
+        hf.readPage(new HeapPageId(hf.getId(), hf.numPages()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,188 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    /**
+     * Restores the default run size
+     */
+    @After public void restoreRunPages() {
+        OrderBy.setRunPages(OrderBy.DEFAULT_RUN_PAGES);
+    }
+
+    /** @return n tuples of two random fields in [0, max) */
+    private static OpIterator randomTuples(int n, int max) {
+        Random r = new Random(n);
+        int[] data = new int[2 * n];
+        for (int i = 0; i < data.length; i++)
+            data[i] = r.nextInt(max);
+        return TestUtil.createTupleList(2, data);
+    }
+
+    /**
+     * Checks that op returns count tuples, ordered on field 0 ascending and
+     * then field 1 descending.
+     */
+    private static void checkOrder(OpIterator op, int count) throws Exception {
+        int n = 0;
+        Tuple last = null;
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            if (last != null) {
+                int c = Integer.compare(last.getInt(0), t.getInt(0));
+                assertTrue(c < 0 || (c == 0 && last.getInt(1) >= t.getInt(1)));
+            }
+            last = t;
+            n++;
+        }
+        assertEquals(count, n);
+    }
+
+    /**
+     * Sorting on one field, in memory
+     */
+    @Test public void singleField() throws Exception {
+        OpIterator child = TestUtil.createTupleList(2,
+            new int[] { 3, 1,
+                        1, 2,
+                        2, 3 });
+        OrderBy op = new OrderBy(0, false, child);
+        op.open();
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        while (op.hasNext())
+            keys.add(op.next().getInt(0));
+        assertEquals("[3, 2, 1]", keys.toString());
+        op.close();
+    }
+
+    /**
+     * Sorting on two fields with a mix of directions, in memory
+     */
+    @Test public void multipleFields() throws Exception {
+        OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                OrderBy.NO_LIMIT, randomTuples(1000, 10));
+        op.open();
+        checkOrder(op, 1000);
+        op.rewind();
+        checkOrder(op, 1000);
+        op.close();
+    }
+
+    /**
+     * Sorting more tuples than fit in one run, with more runs than are
+     * merged at once
+     */
+    @Test public void externalSort() throws Exception {
+        OrderBy.setRunPages(1);
+        int perPage = BufferPool.getPageSize() * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        int n = perPage * (OrderBy.MERGE_FAN_IN + 8) + 17;
+        OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                OrderBy.NO_LIMIT, randomTuples(n, 1000));
+        op.open();
+        checkOrder(op, n);
+        op.rewind();
+        checkOrder(op, n);
+        op.close();
+    }
+
+    /**
+     * With a limit, only the first tuples of the order are returned
+     */
+    @Test public void limit() throws Exception {
+        OrderBy.setRunPages(1);
+        int n = 5000;
+        OrderBy all = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                OrderBy.NO_LIMIT, randomTuples(n, 100));
+        OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                10, randomTuples(n, 100));
+        all.open();
+        op.open();
+        for (int i = 0; i < 10; i++)
+            assertTrue(TestUtil.compareTuples(all.next(), op.next()));
+        assertFalse(op.hasNext());
+        op.rewind();
+        checkOrder(op, 10);
+        op.close();
+        all.close();
+    }
+
+    /**
+     * A limit that fits in memory keeps only the first tuples, with the
+     * same result as a full sort
+     */
+    @Test public void topN() throws Exception {
+        int n = 20000;
+        OrderBy all = new OrderBy(new int[] { 1, 0 }, new boolean[] { false, true },
+                OrderBy.NO_LIMIT, randomTuples(n, 50));
+        OrderBy op = new OrderBy(new int[] { 1, 0 }, new boolean[] { false, true },
+                100, randomTuples(n, 50));
+        all.open();
+        op.open();
+        for (int i = 0; i < 100; i++)
+            assertTrue(TestUtil.compareTuples(all.next(), op.next()));
+        assertFalse(op.hasNext());
+        op.close();
+        all.close();
+
+        op = new OrderBy(new int[] { 0 }, new boolean[] { true }, 0, randomTuples(n, 50));
+        op.open();
+        assertFalse(op.hasNext());
+        op.close();
+    }
+
+    /**
+     * The parser turns ORDER BY ... LIMIT n into a top-N OrderBy
+     */
+    @Test public void limitClause() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, null, null, "c");
+        Database.getCatalog().addTable(f, "lim");
+        TableStats.setTableStats("lim", new TableStats(f.getId(), 1));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM lim ORDER BY lim.c0 DESC LIMIT 7;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        OrderBy oby = (OrderBy) ((Operator) plan).getChildren()[0];
+        assertEquals(7, oby.getLimit());
+        plan.open();
+        int count = 0, last = Integer.MAX_VALUE;
+        while (plan.hasNext()) {
+            int v = plan.next().getInt(0);
+            assertTrue(v <= last);
+            last = v;
+            count++;
+        }
+        assertEquals(7, count);
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A LIMIT that does not fit in an int is a parse error
+     */
+    @Test(expected = ParsingException.class) public void limitOverflow() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "c");
+        Database.getCatalog().addTable(f, "lim");
+        new Parser().generateLogicalPlan(new TransactionId(),
+                "SELECT * FROM lim ORDER BY lim.c0 LIMIT 99999999999;");
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelHeapFileIteratorTest extends SimpleDbTestBase {
+
+    private HeapFile f;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    /**
+     * Creates a heap file of several chunks, the last one partial
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        int perPage = BufferPool.getPageSize() * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        int rows = perPage * (3 * ParallelHeapFileIterator.CHUNK_PAGES + 5) - 7;
+        f = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, tuples, "c");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        SeqScan.setParallelism(1);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return how many times each tuple is in tuples */
+    private static Map<ArrayList<Integer>, Integer> count(Iterable<ArrayList<Integer>> tuples) {
+        Map<ArrayList<Integer>, Integer> counts = new HashMap<ArrayList<Integer>, Integer>();
+        for (ArrayList<Integer> t : tuples)
+            counts.merge(t, 1, Integer::sum);
+        return counts;
+    }
+
+    /** @return the tuples it returns, in the order it returns them */
+    private static ArrayList<ArrayList<Integer>> read(DbFileIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> read = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            read.add(SystemTestUtil.tupleToList(it.next()));
+        return read;
+    }
+
+    /**
+     * All of the file's tuples are returned exactly once, also after a
+     * rewind
+     */
+    @Test public void allTuples() throws Exception {
+        ParallelHeapFileIterator it = new ParallelHeapFileIterator(f, tid, null, 4);
+        it.open();
+        assertEquals(count(tuples), count(read(it)));
+        it.rewind();
+        assertEquals(count(tuples), count(read(it)));
+        it.close();
+    }
+
+    /**
+     * Closing an iterator before it has read everything stops its workers,
+     * and it can be opened again
+     */
+    @Test public void closeEarly() throws Exception {
+        ParallelHeapFileIterator it = new ParallelHeapFileIterator(f, tid, null, 3);
+        it.open();
+        assertTrue(it.nextBatch() != null);
+        it.close();
+        it.open();
+        assertEquals(tuples.size(), read(it).size());
+        it.close();
+    }
+
+    /**
+     * A parallel SeqScan applies a pushed predicate and returns batches
+     * with the scan's field names
+     */
+    @Test public void seqScan() throws Exception {
+        SeqScan.setParallelism(4);
+        SeqScan scan = new SeqScan(tid, f.getId(), "t");
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(300));
+        assertTrue(scan.pushPredicate(p));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 300)
+                expected.add(t);
+        }
+        scan.open();
+        ArrayList<ArrayList<Integer>> read = new ArrayList<ArrayList<Integer>>();
+        for (TupleBatch b = scan.nextBatch(); b != null; b = scan.nextBatch()) {
+            assertEquals(scan.getTupleDesc().getFieldName(0), b.getTupleDesc().getFieldName(0));
+            for (int i = 0; i < b.numSelected(); i++)
+                read.add(SystemTestUtil.tupleToList(b.getTuple(b.getSelected(i))));
+        }
+        scan.close();
+        assertEquals(count(expected), count(read));
+    }
+
+    /**
+     * Only a parallel scan, or a Filter over one, hands out new batches
+     */
+    @Test public void reusesBatches() throws Exception {
+        SeqScan serial = new SeqScan(tid, f.getId(), "t");
+        assertTrue(serial.reusesBatches());
+        SeqScan.setParallelism(4);
+        SeqScan scan = new SeqScan(tid, f.getId(), "t");
+        assertFalse(scan.reusesBatches());
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(300));
+        assertFalse(new Filter(p, scan).reusesBatches());
+        assertTrue(new Filter(p, serial).reusesBatches());
+    }
+
+    /**
+     * A worker that dies of an Error fails the scan instead of cutting it
+     * short
+     */
+    @Test public void workerError() throws Exception {
+        HeapFile broken = new HeapFile(f.getFile(), f.getTupleDesc()) {
+            public Page readPage(PageId pid) {
+                if (pid.getPageNumber() == ParallelHeapFileIterator.CHUNK_PAGES + 1)
+                    throw new AssertionError("bad page");
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(broken, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        ParallelHeapFileIterator it = new ParallelHeapFileIterator(broken, tid, null, 3);
+        it.open();
+        try {
+            read(it);
+            fail("expected the scan to fail");
+        } catch (DbException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelHeapFileIteratorTest.class);
+    }
+}
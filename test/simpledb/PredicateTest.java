@@ -1,8 +1,13 @@
 package simpledb;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
@@ -55,6 +60,29 @@ public class PredicateTest extends SimpleDbTestBase{
     }
   }
 
+  /**
+   * Comparing a serialized string gives the same result as comparing the
+   * StringField it was serialized from
+   */
+  @Test public void compareSerializedStrings() throws Exception {
+    String[] vals = new String[] { "", "a", "ab", "abc", "b", "ba", "B",
+        "xaby", "caf\u00e9" };
+    for (String v : vals) {
+      StringField f = new StringField(v, Type.STRING_LEN);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      f.serialize(new DataOutputStream(baos));
+      ByteBuffer buf = ByteBuffer.wrap(baos.toByteArray());
+      Field parsed = Type.STRING_TYPE.parse(ByteBuffer.wrap(baos.toByteArray()));
+      for (String o : vals) {
+        Field operand = new StringField(o, Type.STRING_LEN);
+        for (Predicate.Op op : Predicate.Op.values()) {
+          assertEquals(v + " " + op + " " + o, parsed.compare(op, operand),
+              Type.STRING_TYPE.compare(buf, 0, op, operand));
+        }
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,206 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+  private static void load(ReplacementPolicy policy, int frame) {
+    policy.pageLoaded(frame, new HeapPageId(1, frame));
+  }
+
+  /**
+   * CLOCK gives a referenced frame a second chance
+   */
+  @Test public void clockSecondChance() {
+    ReplacementPolicy policy = new ClockReplacementPolicy(3);
+    for (int i = 0; i < 3; i++)
+      load(policy, i);
+
+    // first sweep clears every bit, so the hand comes back to frame 0
+    assertEquals(0, policy.victim());
+    load(policy, 0);
+    policy.pageAccessed(2);
+    assertEquals(1, policy.victim());
+  }
+
+  /**
+   * CLOCK never returns a freed frame
+   */
+  @Test public void clockFreedFrame() {
+    ReplacementPolicy policy = new ClockReplacementPolicy(2);
+    load(policy, 0);
+    load(policy, 1);
+    policy.frameFreed(0);
+    assertEquals(1, policy.victim());
+    assertEquals(-1, policy.victim());
+  }
+
+  /**
+   * A pinned frame is off the CLOCK ring, and rejoins it behind the hand
+   */
+  @Test public void clockRejoinsBehindHand() {
+    ReplacementPolicy policy = new ClockReplacementPolicy(3);
+    for (int i = 0; i < 3; i++)
+      load(policy, i);
+    policy.setEvictable(1, false);
+    assertEquals(0, policy.victim());
+
+    // frame 1 is swept after frame 2, though it comes first in the table
+    policy.setEvictable(1, true);
+    assertEquals(2, policy.victim());
+    assertEquals(1, policy.victim());
+    assertEquals(-1, policy.victim());
+  }
+
+  /**
+   * LRU-2 evicts frames referenced once before frames referenced twice
+   */
+  @Test public void lruKPrefersColdFrames() {
+    ReplacementPolicy policy = new LruKReplacementPolicy(3, 2);
+    for (int i = 0; i < 3; i++)
+      load(policy, i);
+    policy.pageAccessed(0);
+    policy.pageAccessed(1);
+
+    assertEquals(2, policy.victim());
+    // frame 0's second most recent reference is older than frame 1's
+    assertEquals(0, policy.victim());
+    assertEquals(1, policy.victim());
+    assertEquals(-1, policy.victim());
+  }
+
+  /**
+   * Logged hits are replayed oldest first, and an overflowing log keeps the
+   * most recent ones
+   */
+  @Test public void accessBufferReplaysRecentHits() {
+    AccessBuffer hits = new AccessBuffer(4);
+    List<Integer> seen = new ArrayList<Integer>();
+    hits.record(3);
+    hits.record(1);
+    hits.drain(seen::add);
+    assertEquals(Arrays.asList(3, 1), seen);
+
+    seen.clear();
+    for (int i = 0; i < 20; i++)
+      hits.record(i % 4);
+    hits.drain(seen::add);
+    assertEquals(16, seen.size());
+    assertEquals(Integer.valueOf(0), seen.get(0));
+    assertEquals(Integer.valueOf(3), seen.get(15));
+
+    seen.clear();
+    hits.drain(seen::add);
+    assertEquals(0, seen.size());
+  }
+
+  /**
+   * 2Q keeps re-referenced pages out of the scan queue
+   */
+  @Test public void twoQPromotesGhosts() {
+    ReplacementPolicy policy = new TwoQReplacementPolicy(4, 1, 4);
+    for (int i = 0; i < 4; i++)
+      load(policy, i);
+
+    // A1in is over its target, so the oldest first-time page goes first
+    assertEquals(0, policy.victim());
+
+    // page 0 comes back while its id is still remembered: it enters Am
+    policy.pageLoaded(0, new HeapPageId(1, 0));
+    assertEquals(1, policy.victim());
+    assertEquals(2, policy.victim());
+    // A1in is back at its target size, so Am gives up its LRU page
+    assertEquals(0, policy.victim());
+    assertEquals(3, policy.victim());
+    assertEquals(-1, policy.victim());
+  }
+
+  /**
+   * No policy offers a frame that has been marked unevictable
+   */
+  @Test public void pinnedFramesAreSkipped() {
+    for (ReplacementPolicy policy : new ReplacementPolicy[] {
+        new ClockReplacementPolicy(3), new LruKReplacementPolicy(3),
+        new TwoQReplacementPolicy(3) }) {
+      for (int i = 0; i < 3; i++)
+        load(policy, i);
+      policy.setEvictable(0, false);
+      policy.setEvictable(2, false);
+      assertEquals(1, policy.victim());
+      assertEquals(-1, policy.victim());
+      policy.setEvictable(2, true);
+      assertEquals(2, policy.victim());
+      policy.setEvictable(0, true);
+      assertEquals(0, policy.victim());
+      assertEquals(-1, policy.victim());
+    }
+  }
+
+  /**
+   * A page pinned through a PageHandle survives a scan of the whole file
+   */
+  @Test public void pinnedPageStaysResident() throws Exception {
+    HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(
+        2, 5000, null, null);
+    BufferPool bp = Database.resetBufferPool(2);
+    TransactionId tid = new TransactionId();
+    HeapPageId first = new HeapPageId(hf.getId(), 0);
+    BufferPool.PageHandle handle = bp.pinPage(tid, first, Permissions.READ_ONLY);
+    for (int i = 1; i < hf.numPages(); i++)
+      bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+    assertSame(handle.getPage(), bp.getPage(tid, first, Permissions.READ_ONLY));
+    handle.close();
+    handle.close();
+  }
+
+  /**
+   * getPage fails instead of evicting when every frame is pinned
+   */
+  @Test(expected=DbException.class) public void allFramesPinned() throws Exception {
+    HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(
+        2, 2000, null, null);
+    BufferPool bp = Database.resetBufferPool(2);
+    TransactionId tid = new TransactionId();
+    bp.pinPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+    bp.pinPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+    bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+  }
+
+  /**
+   * BufferPool keeps serving pages through an eviction-heavy workload
+   */
+  @Test public void bufferPoolEvicts() throws Exception {
+    for (ReplacementPolicy policy : new ReplacementPolicy[] {
+        new ClockReplacementPolicy(2), new LruKReplacementPolicy(2),
+        new TwoQReplacementPolicy(2) }) {
+      Database.reset();
+      HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(
+          2, 2000, null, null);
+      BufferPool bp = new BufferPool(2, policy);
+      TransactionId tid = new TransactionId();
+      for (int round = 0; round < 3; round++) {
+        for (int i = 0; i < hf.numPages(); i++) {
+          HeapPageId pid = new HeapPageId(hf.getId(), i);
+          assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+        }
+      }
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+  }
+}
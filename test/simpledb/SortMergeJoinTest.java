@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private static final Predicate.Op[] OPS = { Predicate.Op.EQUALS,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+            Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ };
+
+    // inputs that are sorted on their first field and have repeated keys
+    private static final int[] DATA1 = { 1, 10,
+                                         2, 20,
+                                         2, 21,
+                                         4, 40,
+                                         6, 60,
+                                         6, 61 };
+    private static final int[] DATA2 = { 0, 0, 0,
+                                         2, 1, 1,
+                                         2, 2, 2,
+                                         3, 3, 3,
+                                         6, 4, 4,
+                                         7, 5, 5 };
+
+    private OpIterator scan1;
+    private OpIterator scan2;
+
+    /**
+     * Initialize each unit test
+     */
+    @Before public void createTupleLists() throws Exception {
+        this.scan1 = TestUtil.createTupleList(2, DATA1);
+        this.scan2 = TestUtil.createTupleList(3, DATA2);
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int count = 0;
+        it.rewind();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Checks that actual returns the same tuples as expected.
+     */
+    private static void checkSame(OpIterator expected, OpIterator actual) throws Exception {
+        expected.open();
+        actual.open();
+        TestUtil.matchAllTuples(expected, actual);
+        assertEquals(count(expected), count(actual));
+        expected.close();
+        actual.close();
+    }
+
+    /**
+     * Every supported predicate gives the same tuples as a nested loops join
+     */
+    @Test public void matchesNestedLoops() throws Exception {
+        for (Predicate.Op op : OPS) {
+            JoinPredicate pred = new JoinPredicate(0, op, 0);
+            checkSame(new Join(pred, TestUtil.createTupleList(2, DATA1),
+                            TestUtil.createTupleList(3, DATA2)),
+                    new SortMergeJoin(pred, scan1, scan2));
+        }
+    }
+
+    /**
+     * Inputs spanning several batches, with a key repeated across a batch
+     * boundary
+     */
+    @Test public void manyBatches() throws Exception {
+        int n = 5 * TupleBatch.DEFAULT_SIZE / 2;
+        int[] data = new int[n];
+        for (int i = 0; i < n; i++)
+            data[i] = i / 5;
+        OpIterator left = TestUtil.createTupleList(1, data);
+        OpIterator right = TestUtil.createTupleList(1, data);
+        SortMergeJoin op = new SortMergeJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+        op.open();
+        int count = 0;
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            assertEquals(t.getInt(0), t.getInt(1));
+            count++;
+        }
+        assertEquals(n * 5, count);
+
+        op.rewind();
+        TupleBatch batch;
+        count = 0;
+        while ((batch = op.nextBatch()) != null)
+            count += batch.numSelected();
+        assertEquals(n * 5, count);
+        op.close();
+    }
+
+    /**
+     * Joins on strings compare them as StringField does
+     */
+    @Test public void stringKeys() throws Exception {
+        Object[] left = { "apple", "kiwi", "kiwi", "pear" };
+        Object[] right = { "banana", "kiwi", "pear", "plum" };
+        for (Predicate.Op op : OPS) {
+            JoinPredicate pred = new JoinPredicate(0, op, 0);
+            checkSame(new Join(pred, TestUtil.createTupleList(1, left),
+                            TestUtil.createTupleList(1, right)),
+                    new SortMergeJoin(pred, TestUtil.createTupleList(1, left),
+                            TestUtil.createTupleList(1, right)));
+        }
+    }
+
+    /**
+     * isSortedOn recognizes ascending OrderBys, through filters and joins
+     */
+    @Test public void isSortedOn() throws Exception {
+        OrderBy sorted = new OrderBy(1, true, scan1);
+        assertTrue(SortMergeJoin.isSortedOn(sorted, 1));
+        assertFalse(SortMergeJoin.isSortedOn(sorted, 0));
+        assertFalse(SortMergeJoin.isSortedOn(new OrderBy(1, false, scan1), 1));
+        assertFalse(SortMergeJoin.isSortedOn(scan1, 0));
+        Filter f = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN,
+                new IntField(1)), sorted);
+        assertTrue(SortMergeJoin.isSortedOn(f, 1));
+
+        SortMergeJoin j = new SortMergeJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 2),
+                sorted, new OrderBy(2, true, scan2));
+        assertTrue(SortMergeJoin.isSortedOn(j, 1));
+        assertTrue(SortMergeJoin.isSortedOn(j, 2 + 2));
+        assertFalse(SortMergeJoin.isSortedOn(j, 0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
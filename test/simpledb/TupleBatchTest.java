@@ -0,0 +1,156 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  /** @return the selected rows of all of op's batches, sorted */
+  private static List<String> batchRows(OpIterator op) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    op.open();
+    TupleBatch batch;
+    while ((batch = op.nextBatch()) != null) {
+      assertTrue(batch.numSelected() > 0);
+      for (int i = 0; i < batch.numSelected(); i++)
+        rows.add(batch.getTuple(batch.getSelected(i)).toString());
+    }
+    op.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /** @return op's tuples read one at a time, sorted */
+  private static List<String> tupleRows(OpIterator op) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    op.open();
+    while (op.hasNext())
+      rows.add(op.next().toString());
+    op.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * Filtering narrows the selection and leaves the rows in place
+   */
+  @Test public void filter() {
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(2));
+    for (int i = 0; i < 10; i++)
+      batch.addTuple(Utility.getHeapTuple(new int[] { i, -i }));
+    batch.filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(3)));
+    batch.filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(-6)));
+    assertEquals(10, batch.numRows());
+    assertEquals(3, batch.numSelected());
+    for (int i = 0; i < 3; i++)
+      assertEquals(3 + i, batch.getInt(0, batch.getSelected(i)));
+  }
+
+  /**
+   * A batch grows when more rows are added than it was sized for
+   */
+  @Test public void grow() {
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(1), 4);
+    for (int i = 0; i < 10; i++)
+      batch.addTuple(Utility.getHeapTuple(i, 1));
+    assertEquals(10, batch.numRows());
+    assertEquals(10, batch.numSelected());
+    assertEquals(9, batch.getIntColumn(0)[9]);
+  }
+
+  /**
+   * Operators without a batch implementation are read a tuple at a time
+   */
+  @Test public void rowAdapter() throws Exception {
+    OpIterator scan = new TestUtil.MockScan(0, 3000, 2);
+    scan.open();
+    TupleBatch batch = scan.nextBatch();
+    assertEquals(TupleBatch.DEFAULT_SIZE, batch.numSelected());
+    assertEquals(0, batch.getInt(0, batch.getSelected(0)));
+    assertEquals(TupleBatch.DEFAULT_SIZE, scan.nextBatch().numSelected());
+    assertEquals(3000 - 2 * TupleBatch.DEFAULT_SIZE, scan.nextBatch().numSelected());
+    assertNull(scan.nextBatch());
+    scan.close();
+  }
+
+  /**
+   * A SeqScan over a heap file copies its pages into batches
+   */
+  @Test public void seqScan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 3000, null, tuples);
+    SeqScan scan = new SeqScan(new TransactionId(), hf.getId(), "t");
+    scan.open();
+    ArrayList<ArrayList<Integer>> read = new ArrayList<ArrayList<Integer>>();
+    TupleBatch batch;
+    while ((batch = scan.nextBatch()) != null) {
+      assertTrue(batch.numRows() <= TupleBatch.DEFAULT_SIZE);
+      for (int i = 0; i < batch.numSelected(); i++) {
+        int row = batch.getSelected(i);
+        assertNotNull(batch.getRecordId(row));
+        read.add(new ArrayList<Integer>(Arrays.asList(
+            batch.getInt(0, row), batch.getInt(1, row), batch.getInt(2, row))));
+      }
+    }
+    scan.close();
+    assertEquals(tuples, read);
+  }
+
+  /**
+   * Filter and Project over a scan return the same rows either way
+   */
+  @Test public void filterProject() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 3000, null, null);
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1 << 14));
+    ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+    Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+
+    List<String> expected = tupleRows(new Project(fields, types,
+        new Filter(p, new SeqScan(new TransactionId(), hf.getId(), "t"))));
+    List<String> actual = batchRows(new Project(fields, types,
+        new Filter(p, new SeqScan(new TransactionId(), hf.getId(), "t"))));
+    assertTrue(expected.size() > 0);
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * A hash join whose output overflows several batches returns the same
+   * rows either way
+   */
+  @Test public void hashEquiJoin() throws Exception {
+    HeapFile left = SystemTestUtil.createRandomHeapFile(2, 600, 50, null, null);
+    HeapFile right = SystemTestUtil.createRandomHeapFile(3, 400, 50, null, null);
+    JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+
+    List<String> expected = tupleRows(new HashEquiJoin(p,
+        new SeqScan(new TransactionId(), left.getId(), "l"),
+        new SeqScan(new TransactionId(), right.getId(), "r")));
+    HashEquiJoin join = new HashEquiJoin(p,
+        new SeqScan(new TransactionId(), left.getId(), "l"),
+        new SeqScan(new TransactionId(), right.getId(), "r"));
+    List<String> actual = batchRows(join);
+    assertTrue(expected.size() > TupleBatch.DEFAULT_SIZE);
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}